@@ -17,7 +17,6 @@ import org.gamboni.cloudspill.shared.domain.ItemType;
 import org.gamboni.cloudspill.ui.SettingsActivity;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
@@ -284,25 +283,20 @@ public class DirectoryScanner {
         );
     }
 
-    private InputStream getInputStream(FileBuilder file) {
-        try {
-            return context.getContentResolver().openInputStream(file.getUri());
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "file unreadable :"+ file, e);
-            return null;
-        }
-    }
-
     private void streamFile(Domain.Folder root, final FileBuilder file, final String path, final ItemType type) {
         Log.d(TAG, "Queuing...");
         queue(file.getUri().getPath());
         Log.d(TAG, "Loading file...");
 
         final String folder = root.get(Domain.FolderSchema.NAME);
-        InputStream body = getInputStream(file);
         final Date date = getMediaDate(file, /*body (unused)*/null);
 
-        server.upload(folder, path, date, type, body, file.length(), new Response.Listener<Long>() {
+        server.upload(folder, path, date, type, new CloudSpillServerProxy.UploadSource() {
+                    @Override
+                    public InputStream open() throws IOException {
+                        return file.read();
+                    }
+                }, file.length(), new Response.Listener<Long>() {
                     @Override
                     public void onResponse(Long response) {
                         Log.d(TAG, "Received new id "+ response);
@@ -42,7 +42,10 @@ public class AuthenticatingConnection {
 
     public enum RequestHeader {
         TIMESTAMP("X-CloudSpill-Timestamp"),
-        TYPE("X-CloudSpill-Type");
+        TYPE("X-CloudSpill-Type"),
+        CHECKSUM("X-CloudSpill-Checksum"),
+        CHUNK_CHECKSUM("X-CloudSpill-Chunk-Checksum"),
+        CHUNK_COUNT("X-CloudSpill-Chunk-Count");
 
         private final String httpHeader;
 
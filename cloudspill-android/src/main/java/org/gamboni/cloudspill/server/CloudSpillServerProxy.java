@@ -17,12 +17,17 @@ import org.gamboni.cloudspill.ui.SettingsActivity;
 import org.gamboni.cloudspill.domain.Domain;
 
 import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Created by tendays on 25.06.17.
@@ -144,76 +149,200 @@ public class CloudSpillServerProxy {
         return serverInfo.isOnline();
     }
 
-    private static final int BUF_SIZE = 4096;
+    /** Size of the chunks large files are uploaded in. */
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    /** How many times a chunked upload is attempted before giving up. */
+    private static final int UPLOAD_ATTEMPTS = 5;
+    /** Delay before resuming a failed upload, doubled after each failed attempt. */
+    private static final long INITIAL_RETRY_DELAY = 2000;
 
-    public void upload(final String folder, final String path, Date date, ItemType type, final InputStream body,
+    /** Contents of a file to upload, which may be read more than once. */
+    public interface UploadSource {
+        InputStream open() throws IOException;
+    }
+
+    public void upload(final String folder, final String path, Date date, ItemType type, final UploadSource source,
                        final long bytes, final Response.Listener<Long> listener, final Response.ErrorListener onError) {
         // TODO [MAJOR][Performance] run all this in a separate thread
         Log.d(TAG, "UploadingVideo "+ folder +"/"+ path);
 
+        final String checksum;
         try {
-            new AuthenticatingConnection(context,
+            /* Reading the file an extra time to hash it allows the server to skip storing contents it already has */
+            try (InputStream body = source.open()) {
+                checksum = checksum(body);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Reading "+ path +" failed", e);
+            onError.onErrorResponse(new VolleyError("I/O problem when uploading", e));
+            return;
+        }
+        // An empty file is still sent as one (empty) chunk
+        final int chunkCount = (int) Math.max(1, (bytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        /* Large files are sent in chunks. When the transfer fails, it is resumed in the same session after a delay,
+         * sending only the chunks the server does not have yet. */
+        String session = null;
+        long delay = INITIAL_RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (session == null) {
+                    session = readLine(new AuthenticatingConnection(context,
+                            AuthenticatingConnection.RequestMethod.POST,
+                            api.uploadSession(user, folder, path))
+                            .setHeader(AuthenticatingConnection.RequestHeader.TIMESTAMP, Long.toString(date.getTime()))
+                            .setHeader(AuthenticatingConnection.RequestHeader.TYPE, type.name())
+                            .setHeader(AuthenticatingConnection.RequestHeader.CHECKSUM, checksum));
+                }
+                final Set<Integer> received = getReceivedChunks(session);
+                if (received == null) {
+                    session = null;
+                    throw new IOException("Upload session expired");
+                }
+                sendMissingChunks(session, source, chunkCount, received, folder, path);
+
+                final String responseText = readLine(new AuthenticatingConnection(context,
+                        AuthenticatingConnection.RequestMethod.POST,
+                        api.commitUpload(session))
+                        .setHeader(AuthenticatingConnection.RequestHeader.CHUNK_COUNT, Integer.toString(chunkCount)));
+                if (responseText == null) {
+                    Log.e(TAG, "No response");
+                    onError.onErrorResponse(new VolleyError("No response received from server"));
+                    return;
+                }
+                long id = Long.parseLong(responseText);
+                Log.i(TAG, "Received id " + id);
+                listener.onResponse(id);
+                return;
+            } catch (IOException e) {
+                if (attempt == UPLOAD_ATTEMPTS) {
+                    Log.e(TAG, "Uploading failed", e);
+                    onError.onErrorResponse(new VolleyError("I/O problem when uploading", e));
+                    return;
+                }
+                Log.w(TAG, "Uploading "+ path +" failed, resuming in "+ delay +"ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    onError.onErrorResponse(new VolleyError("Interrupted while uploading", ie));
+                    return;
+                }
+                delay *= 2;
+            }
+        }
+    }
+
+    /** Send the chunks of the given file that are not in the received set. */
+    private void sendMissingChunks(String session, UploadSource source, int chunkCount, Set<Integer> received,
+                                   String folder, String path) throws IOException {
+        int loggedPercentage = 0; // latest displayed percentage
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        try (InputStream body = source.open()) {
+            for (int number = 0; number < chunkCount; number++) {
+                int length = 0;
+                int readLen;
+                while (length < buffer.length && (readLen = body.read(buffer, length, buffer.length - length)) > 0) {
+                    length += readLen;
+                }
+                if (!received.contains(number)) {
+                    uploadChunk(session, number, buffer, length);
+                }
+                int percentage = (int) ((number + 1) * 100.0 / chunkCount);
+                if (percentage / 10 > loggedPercentage / 10) {
+                    Log.d(TAG, "UploadingVideo " + folder + "/" + path + " [" + percentage + "%]");
+                    loggedPercentage = percentage;
+                }
+            }
+        }
+    }
+
+    /** Send one chunk of a chunked upload. */
+    private void uploadChunk(String session, int number, final byte[] buffer, final int length) throws IOException {
+        final MessageDigest md5 = newMessageDigest();
+        md5.update(buffer, 0, length);
+        final String checksum = AndroidBase64Encoder.INSTANCE.encode(md5.digest());
+        new AuthenticatingConnection(context,
                 AuthenticatingConnection.RequestMethod.PUT,
-                api.upload(user, folder, path))
-            .setHeader(AuthenticatingConnection.RequestHeader.TIMESTAMP, Long.toString(date.getTime()))
-            .setHeader(AuthenticatingConnection.RequestHeader.TYPE, type.name())
-            // Using chunked transfer to prevent caching at server side :(
-            .setChunkedStreamingMode(1048576)
-            .setDoOutput()
-            .connect(new AuthenticatingConnection.Session() {
-                @Override
-                public void run(AuthenticatingConnection.Connected connected) throws IOException {
-                    /*
-                    DANGER: this creates zero-byte files in server!
-                    final InputStream input = connected.getInput();
-                    Log.d(TAG, "Eager input has "+ input.available() +" bytes ready");
-                    */
-                    //final BufferedReader eagerRead = new BufferedReader(new InputStreamReader(input));
-
-                    BufferedReader response = null;
-
-                    int loggedPercentage = 0; // latest displayed percentage
-                    int transmitted = 0; // how many bytes have been pushed so far
-
-                    OutputStream out = connected.getOutput();
-                    byte[] buffer = new byte[BUF_SIZE];
-                    int readLen;
-                    try {
-                        while ((readLen = body.read(buffer)) > 0) {
-                            out.write(buffer, 0, readLen);
-                            transmitted += readLen;
-                            int percentage = (int) (transmitted * 100.0 / bytes);
-                            if (percentage / 10 > loggedPercentage / 10) {
-                                Log.d(TAG, "UploadingVideo " + folder + "/" + path + " [" + percentage + "%]");
-                                loggedPercentage = percentage;
+                api.uploadChunk(session, number))
+                .setHeader(AuthenticatingConnection.RequestHeader.CHUNK_CHECKSUM, checksum)
+                .setDoOutput()
+                .connect(new AuthenticatingConnection.Session() {
+                    @Override
+                    public void run(AuthenticatingConnection.Connected connected) throws IOException {
+                        OutputStream out = connected.getOutput();
+                        out.write(buffer, 0, length);
+                        // Reading the (empty) response makes sure the server accepted the chunk
+                        connected.getInput().close();
+                    }
+                });
+    }
+
+    /** Return the numbers of the chunks of the given session the server already has, or null if the session has
+     * expired. */
+    private Set<Integer> getReceivedChunks(String session) throws IOException {
+        final Set<Integer> result = new HashSet<>();
+        try {
+            new AuthenticatingConnection(context,
+                    AuthenticatingConnection.RequestMethod.GET,
+                    api.uploadSessionStatus(session))
+                    .connect(new AuthenticatingConnection.Session() {
+                        @Override
+                        public void run(AuthenticatingConnection.Connected connected) throws IOException {
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(connected.getInput()));
+                            String line;
+                            while ((line = reader.readLine()) != null) {
+                                if (!line.isEmpty()) {
+                                    result.add(Integer.parseInt(line));
+                                }
                             }
                         }
-                    } catch (IOException writeException) {
-                        Log.w(TAG, "Exception writing message body. This may be expected when uploading an already existing item", writeException);
-                    }
-                    response = new BufferedReader(new InputStreamReader(connected.getInput()));
-                    String responseText = response.readLine();
-                    if (responseText == null) {
-                        Log.e(TAG, "No response");
-                        onError.onErrorResponse(new VolleyError("No response received from server"));
-                        return;
-                    }
-                    long id = Long.parseLong(responseText);
-                    Log.i(TAG, "Received id " + id);
-                    listener.onResponse(id);
-                }
-            });
-        } catch (IOException e) {
-            Log.e(TAG, "Uploading failed", e);
-            onError.onErrorResponse(new VolleyError("I/O problem when uploading", e));
+                    });
+            return result;
+        } catch (FileNotFoundException e) {
+            // HttpURLConnection reports 404 responses this way
+            return null;
+        }
+    }
+
+    /** Compute the checksum of the given data, in the format of {@link CloudSpillApi#UPLOAD_CHECKSUM_HEADER}. */
+    private static String checksum(InputStream data) throws IOException {
+        final MessageDigest md5 = newMessageDigest();
+        final byte[] buffer = new byte[65536];
+        int length;
+        while ((length = data.read(buffer)) != -1) {
+            md5.update(buffer, 0, length);
+        }
+        return AndroidBase64Encoder.INSTANCE.encode(md5.digest());
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
+    /** Connect and return the first line of the response. */
+    private static String readLine(AuthenticatingConnection connection) throws IOException {
+        final String[] result = new String[1];
+        connection.connect(new AuthenticatingConnection.Session() {
+            @Override
+            public void run(AuthenticatingConnection.Connected connected) throws IOException {
+                result[0] = new BufferedReader(new InputStreamReader(connected.getInput())).readLine();
+            }
+        });
+        return result[0];
+    }
+
     public void upload(String folder, String path, Date date, ItemType type, byte[] body, Response.Listener<Long> listener, Response.ErrorListener onError) {
         Log.d(TAG, "Uploading "+ body.length +" bytes");
+        final MessageDigest md5 = newMessageDigest();
+        md5.update(body);
         queue.add(new FileUploadRequest(context, api.upload(user, folder, path),
                 date,
                 type,
+                AndroidBase64Encoder.INSTANCE.encode(md5.digest()),
                 body,
                 listener,
                 onError));
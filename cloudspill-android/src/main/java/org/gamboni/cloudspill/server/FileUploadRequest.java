@@ -25,6 +25,7 @@ import java.util.Map;
 public class FileUploadRequest extends StringBasedAuthenticatingRequest<Long> {
     private final Date date;
     private final ItemType type;
+    private final String checksum;
     private final byte[] body;
 
     private static final String TAG = "CloudSpill.Upload";
@@ -34,11 +35,12 @@ public class FileUploadRequest extends StringBasedAuthenticatingRequest<Long> {
      *
      * @param url URL of the request to make
      */
-    public FileUploadRequest(Context context, String url, Date date, ItemType type, byte[] body, Response.Listener<Long> listener, Response.ErrorListener errorListener) {
+    public FileUploadRequest(Context context, String url, Date date, ItemType type, String checksum, byte[] body, Response.Listener<Long> listener, Response.ErrorListener errorListener) {
         super(context, Method.PUT, url, listener, loggingWrapper(url, errorListener));
         this.body = body;
         this.date = date;
         this.type = type;
+        this.checksum = checksum;
         if (url.contains("invalid")) { throw new IllegalArgumentException(); }
         Log.d(TAG, "Created request to "+ url);
     }
@@ -48,6 +50,7 @@ public class FileUploadRequest extends StringBasedAuthenticatingRequest<Long> {
         Map<String, String> headers = super.getHeaders();
         headers.put(CloudSpillApi.UPLOAD_TIMESTAMP_HEADER, Long.toString(date.getTime()));
         headers.put(CloudSpillApi.UPLOAD_TYPE_HEADER, type.name());
+        headers.put(CloudSpillApi.UPLOAD_CHECKSUM_HEADER, checksum);
         return headers;
     }
 
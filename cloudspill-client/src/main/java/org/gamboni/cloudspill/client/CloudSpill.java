@@ -15,6 +15,7 @@ import com.google.common.io.CharStreams;
 
 import org.gamboni.cloudspill.lambda.MetadataExtractor;
 import org.gamboni.cloudspill.lambda.client.ApiInvokers;
+import org.gamboni.cloudspill.lambda.client.ChunkedUpload;
 import org.gamboni.cloudspill.shared.api.ApiElementMatcher;
 import org.gamboni.cloudspill.shared.api.Base64Encoder;
 import org.gamboni.cloudspill.shared.api.CloudSpillApi;
@@ -122,14 +123,21 @@ public class CloudSpill {
 				while (optionParser.hasNext()) {
 					String path = optionParser.next();
 					System.out.println(path);
+					final File file = new File(path);
 
 					try (final BufferedInputStream fileInput = new BufferedInputStream(new FileInputStream(path))) {
-						ItemMetadata metadata = MetadataExtractor.getItemMetadata(fileInput, new File(path));
-						api.upload(username,
-								folder,
-								unprefix(path, "./", "/"), ApiInvokers.upload(metadata, fileInput, id -> {
-									System.out.println("Created new item with id " + id);
-								}));
+						ItemMetadata metadata = MetadataExtractor.getItemMetadata(fileInput, file);
+						if (file.length() > ChunkedUpload.CHUNK_SIZE) {
+							// Large files are sent in chunks so a network glitch does not restart the whole upload
+							long id = new ChunkedUpload(api).upload(username, folder, unprefix(path, "./", "/"), metadata, file);
+							System.out.println("Created new item with id " + id);
+						} else {
+							api.upload(username,
+									folder,
+									unprefix(path, "./", "/"), ApiInvokers.upload(metadata, ApiInvokers.checksum(file), fileInput, id -> {
+										System.out.println("Created new item with id " + id);
+									}));
+						}
 					} catch (IOException e) {
 						System.err.println(e.getMessage());
 					}
@@ -4,6 +4,8 @@ import com.drew.imaging.FileType;
 import com.drew.imaging.FileTypeDetector;
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegProcessingException;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
 import com.google.common.io.ByteStreams;
@@ -13,6 +15,7 @@ import org.gamboni.cloudspill.shared.domain.ItemType;
 import org.gamboni.cloudspill.shared.util.FileTypeChecker;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -22,6 +25,39 @@ import java.util.Date;
  * @author tendays
  */
 public abstract class MetadataExtractor {
+    /** Number of bytes to capture at the beginning of a file for {@link #getHeaderMetadata}. JPEG
+     * metadata segments are limited to 64kB each and usually come in one or two of them. */
+    public static final int HEADER_LENGTH = 128 * 1024;
+
+    /** Extract metadata from the first bytes of a file, as captured while it is being written. This is enough to
+     * detect the type of JPEG and video files, and to find the date of JPEG files, whose EXIF data comes before the
+     * image data.
+     *
+     * @param header the first {@link #HEADER_LENGTH} bytes of the file (or the whole file if it is shorter)
+     * @param file the file itself, only used for its modification time
+     * @return the metadata, with null fields for anything that could not be determined from the header alone.
+     */
+    public static ItemMetadata getHeaderMetadata(byte[] header, File file) {
+        if (header.length < FileTypeChecker.PREAMBLE_LENGTH) {
+            return new ItemMetadata(null, null);
+        }
+        final ItemType itemType = new FileTypeChecker(header).getType();
+        if (itemType != ItemType.IMAGE) {
+            // Video metadata may come after the data; other types are not recognised by FileTypeChecker
+            return new ItemMetadata(null, (itemType == ItemType.UNKNOWN) ? null : itemType);
+        }
+        try {
+            final ExifSubIFDDirectory exif = JpegMetadataReader.readMetadata(new ByteArrayInputStream(header))
+                    .getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+            return new ItemMetadata(
+                    (exif != null && exif.getDateDigitized() != null) ? exif.getDateDigitized() : new Date(file.lastModified()),
+                    itemType);
+        } catch (JpegProcessingException | IOException e) {
+            // Metadata does not fit in the header
+            return new ItemMetadata(null, itemType);
+        }
+    }
+
     public static ItemMetadata getItemMetadata(BufferedInputStream stream, File file) throws IOException {
         if (stream == null) {
             try (BufferedInputStream fileStream = new BufferedInputStream(new FileInputStream(file))) {
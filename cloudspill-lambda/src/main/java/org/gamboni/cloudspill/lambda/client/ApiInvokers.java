@@ -7,8 +7,15 @@ import org.gamboni.cloudspill.shared.api.CloudSpillApi;
 import org.gamboni.cloudspill.shared.api.ItemMetadata;
 import org.gamboni.cloudspill.shared.client.ResponseHandler;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.function.Consumer;
 
 /** Standard client implementations of CloudSpillApi methods.
@@ -16,7 +23,11 @@ import java.util.function.Consumer;
  * @author tendays
  */
 public abstract class ApiInvokers {
-    public static ResponseHandler upload(ItemMetadata metadata, InputStream input, Consumer<Long> result) {
+    /** Upload the given data.
+     *
+     * @param checksum checksum of the data as computed by {@link #checksum(File)}, or null if unknown.
+     */
+    public static ResponseHandler upload(ItemMetadata metadata, String checksum, InputStream input, Consumer<Long> result) {
         return connection -> {
             if (metadata.itemDate != null) {
                 connection.setRequestProperty(CloudSpillApi.UPLOAD_TIMESTAMP_HEADER, Long.toString(metadata.itemDate.getTime()));
@@ -24,6 +35,9 @@ public abstract class ApiInvokers {
             if (metadata.itemType != null) {
                 connection.setRequestProperty(CloudSpillApi.UPLOAD_TYPE_HEADER, metadata.itemType.name());
             }
+            if (checksum != null) {
+                connection.setRequestProperty(CloudSpillApi.UPLOAD_CHECKSUM_HEADER, checksum);
+            }
 
             connection.setDoOutput(true);
 
@@ -34,4 +48,17 @@ public abstract class ApiInvokers {
             result.accept(Long.parseLong(response));
         };
     }
+
+    /** Compute the checksum of the given file, in the format of {@link CloudSpillApi#UPLOAD_CHECKSUM_HEADER}. */
+    public static String checksum(File file) throws IOException {
+        try {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            try (InputStream in = new DigestInputStream(new FileInputStream(file), md5)) {
+                ByteStreams.exhaust(in);
+            }
+            return Base64.getEncoder().encodeToString(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
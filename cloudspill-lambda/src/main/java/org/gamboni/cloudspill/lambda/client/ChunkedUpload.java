@@ -0,0 +1,155 @@
+package org.gamboni.cloudspill.lambda.client;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+
+import org.gamboni.cloudspill.shared.api.CloudSpillApi;
+import org.gamboni.cloudspill.shared.api.ItemMetadata;
+import org.gamboni.cloudspill.shared.client.ResponseHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Client side of the chunked upload protocol: the file is sent in chunks. When the transfer fails, it is resumed in
+ * the same upload session after a delay, sending only the chunks the server does not have yet.
+ *
+ * @author tendays
+ */
+public class ChunkedUpload {
+    /** Files larger than this are worth uploading in chunks. */
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 5;
+    /** Delay before the first resumption, doubled after each failed attempt. */
+    private static final long INITIAL_RETRY_DELAY = 2000;
+
+    private final CloudSpillApi<ResponseHandler> api;
+    private String session;
+
+    public ChunkedUpload(CloudSpillApi<ResponseHandler> api) {
+        this.api = api;
+    }
+
+    /** Upload the given file and return the id of the created item. */
+    public long upload(String user, String folder, String path, ItemMetadata metadata, File file) throws IOException {
+        // Allows the server to skip storing contents it already has
+        final String checksum = ApiInvokers.checksum(file);
+        // An empty file is still sent as one (empty) chunk
+        final int chunkCount = (int) Math.max(1, (file.length() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        long delay = INITIAL_RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (session == null) {
+                    createSession(user, folder, path, metadata, checksum);
+                }
+                sendMissingChunks(file, chunkCount);
+                return commit(chunkCount);
+            } catch (IOException | RuntimeException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw new IOException("Failed uploading "+ path +" after "+ attempt +" attempts", e);
+                }
+                System.err.println("Failed uploading "+ path +", resuming in "+ delay +"ms: "+ e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Interrupted while uploading "+ path);
+                }
+                delay *= 2;
+            }
+        }
+    }
+
+    private void createSession(String user, String folder, String path, ItemMetadata metadata, String checksum) {
+        api.uploadSession(user, folder, path, connection -> {
+            if (metadata.itemDate != null) {
+                connection.setRequestProperty(CloudSpillApi.UPLOAD_TIMESTAMP_HEADER, Long.toString(metadata.itemDate.getTime()));
+            }
+            if (metadata.itemType != null) {
+                connection.setRequestProperty(CloudSpillApi.UPLOAD_TYPE_HEADER, metadata.itemType.name());
+            }
+            connection.setRequestProperty(CloudSpillApi.UPLOAD_CHECKSUM_HEADER, checksum);
+            session = readResponse(connection);
+        });
+    }
+
+    private void sendMissingChunks(File file, int chunkCount) throws IOException {
+        final Set<Integer> received = getReceivedChunks();
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        try (InputStream data = new FileInputStream(file)) {
+            for (int number = 0; number < chunkCount; number++) {
+                if (received.contains(number)) {
+                    ByteStreams.skipFully(data, Math.min(CHUNK_SIZE, file.length() - (long) number * CHUNK_SIZE));
+                } else {
+                    sendChunk(number, buffer, ByteStreams.read(data, buffer, 0, buffer.length));
+                }
+            }
+        }
+    }
+
+    private void sendChunk(int number, byte[] buffer, int length) {
+        final String checksum = md5(buffer, length);
+        api.uploadChunk(session, number, connection -> {
+            connection.setRequestProperty(CloudSpillApi.UPLOAD_CHUNK_CHECKSUM_HEADER, checksum);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.getOutputStream().write(buffer, 0, length);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Server rejected chunk "+ number +": "+ connection.getResponseCode());
+            }
+        });
+    }
+
+    private long commit(int chunkCount) {
+        final long[] id = new long[1];
+        api.commitUpload(session, connection -> {
+            connection.setRequestProperty(CloudSpillApi.UPLOAD_CHUNK_COUNT_HEADER, Integer.toString(chunkCount));
+            id[0] = Long.parseLong(readResponse(connection));
+        });
+        return id[0];
+    }
+
+    /** Ask the server which chunks of the current session it already has. If the session has expired, a new one is
+     * started on the next attempt. */
+    private Set<Integer> getReceivedChunks() {
+        final Set<Integer> result = new HashSet<>();
+        api.uploadSessionStatus(session, connection -> {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                session = null;
+                throw new IOException("Upload session expired");
+            }
+            for (String line : CharStreams.readLines(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                if (!line.isEmpty()) {
+                    result.add(Integer.parseInt(line));
+                }
+            }
+        });
+        return result;
+    }
+
+    private static String readResponse(HttpURLConnection connection) throws IOException {
+        try (InputStreamReader in = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            return CharStreams.toString(in).trim();
+        }
+    }
+
+    private static String md5(byte[] buffer, int length) {
+        try {
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(buffer, 0, length);
+            return Base64.getEncoder().encodeToString(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -12,6 +12,9 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.MappedSuperclass;
 import javax.persistence.Transient;
 import javax.persistence.Version;
@@ -29,6 +32,7 @@ public abstract class BackendItem extends JpaItem {
      */
     protected long id;
     Instant updated;
+    private Visibility visibility = Visibility.PRIVATE;
 
     @Transient
     public Long getServerId() {
@@ -43,6 +47,16 @@ public abstract class BackendItem extends JpaItem {
         this.updated = updated;
     }
 
+    /** Visibility implied by the tags of this item. It must be updated when tags change, see {@link Visibility#of}. */
+    @Enumerated(EnumType.ORDINAL)
+    @Column(nullable = false)
+    public Visibility getVisibility() {
+        return visibility;
+    }
+    public void setVisibility(Visibility visibility) {
+        this.visibility = visibility;
+    }
+
     public static final Csv<BackendItem> CSV = new Csv.Impl<BackendItem>()
             .add("id", i -> String.valueOf(i.id), (i, id) -> i.id = Long.parseLong(id))
             .add("user", BackendItem::getUser, BackendItem::setUser)
@@ -53,7 +67,11 @@ public abstract class BackendItem extends JpaItem {
             .add("type", i -> i.getType().name(), (i, type) -> i.setType(ItemType.valueOf(type)))
             .add("tags",
                     i -> Joiner.on(",").join(i.getTags()),
-                    (i, tags) -> i.setTags(ImmutableSet.copyOf(Splitter.on(",").omitEmptyStrings().split(tags))))
+                    (i, tags) -> {
+                        i.setTags(ImmutableSet.copyOf(Splitter.on(",").omitEmptyStrings().split(tags)));
+                        // Not transmitted: items received from another server must still be stored with their visibility
+                        i.setVisibility(Visibility.of(i.getTags()));
+                    })
             .add("checksum", BackendItem::getChecksum, BackendItem::setChecksum)
             .add("description", BackendItem::getDescription, BackendItem::setDescription);
 
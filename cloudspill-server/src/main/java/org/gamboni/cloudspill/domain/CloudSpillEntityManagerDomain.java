@@ -1,9 +1,21 @@
 package org.gamboni.cloudspill.domain;
 
+import com.google.common.collect.Lists;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
 import org.gamboni.cloudspill.shared.query.QueryRange;
+import org.hibernate.SQLQuery;
+import org.hibernate.jpa.QueryHints;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -13,10 +25,12 @@ import javax.persistence.LockModeType;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.PluralAttribute;
 import javax.persistence.metamodel.SingularAttribute;
 
 /**
@@ -25,6 +39,7 @@ import javax.persistence.metamodel.SingularAttribute;
 public abstract class CloudSpillEntityManagerDomain {
     protected final EntityManager session;
     public final CriteriaBuilder criteriaBuilder;
+    private final List<Runnable> afterCommit = new ArrayList<>();
 
     protected CloudSpillEntityManagerDomain(EntityManager session) {
         this.session = session;
@@ -74,6 +89,11 @@ public abstract class CloudSpillEntityManagerDomain {
         }
     */
 
+    /** Receives the rows of a query one batch at a time. */
+    public interface BatchConsumer<T> {
+        void accept(List<? extends T> batch) throws IOException;
+    }
+
     private interface ComparableAttributeConsumer<T> {
         <V extends Comparable<? super V>> void accept(SingularAttribute<? super T, V> attribute);
     }
@@ -103,31 +123,144 @@ public abstract class CloudSpillEntityManagerDomain {
         }
 
         public Order on(CriteriaBuilder criteriaBuilder, Root<? extends T> root) {
-            return ascending ?
+            return on(criteriaBuilder, root, true);
+        }
+
+        private Order on(CriteriaBuilder criteriaBuilder, Root<? extends T> root, boolean forward) {
+            return (ascending == forward) ?
                             criteriaBuilder.asc(root.get(attribute)) :
                             criteriaBuilder.desc(root.get(attribute));
         }
+
+        /* Keyset predicates assume null values sort first, as in MySQL. */
+
+        /** Rows coming after the given value, or before it if {@code forward} is false. */
+        private Predicate beyond(CriteriaBuilder criteriaBuilder, Root<? extends T> root, Object value, boolean forward) {
+            final Predicate[] result = new Predicate[1];
+            getAttribute(new ComparableAttributeConsumer<T>() {
+                @Override
+                public <V extends Comparable<? super V>> void accept(SingularAttribute<? super T, V> attribute) {
+                    final Path<V> expression = root.get(attribute);
+                    @SuppressWarnings("unchecked") // keys come from valueOf() or decode() on this same attribute
+                    final V typedValue = (V) value;
+                    if (ascending == forward) {
+                        result[0] = (value == null) ?
+                                criteriaBuilder.isNotNull(expression) :
+                                criteriaBuilder.greaterThan(expression, typedValue);
+                    } else {
+                        result[0] = (value == null) ?
+                                criteriaBuilder.disjunction() :
+                                criteriaBuilder.or(
+                                        criteriaBuilder.lessThan(expression, typedValue),
+                                        criteriaBuilder.isNull(expression));
+                    }
+                }
+            });
+            return result[0];
+        }
+
+        private Predicate equalTo(CriteriaBuilder criteriaBuilder, Root<? extends T> root, Object value) {
+            return (value == null) ?
+                    criteriaBuilder.isNull(root.get(attribute)) :
+                    criteriaBuilder.equal(root.get(attribute), value);
+        }
+
+        private Object valueOf(Object row) {
+            try {
+                return ((Method) attribute.getJavaMember()).invoke(row);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private String encode(Object value) {
+            if (value instanceof Enum) {
+                return ((Enum<?>) value).name();
+            } else {
+                return (value == null) ? null : value.toString();
+            }
+        }
+
+        private Object decode(String value) {
+            if (value == null) {
+                return null;
+            }
+            final Class<?> type = attribute.getJavaType();
+            if (type == LocalDateTime.class) {
+                return LocalDateTime.parse(value);
+            } else if (type == Instant.class) {
+                return Instant.parse(value);
+            } else if (type == Long.class || type == long.class) {
+                return Long.valueOf(value);
+            } else if (type == Integer.class || type == int.class) {
+                return Integer.valueOf(value);
+            } else if (type == String.class) {
+                return value;
+            } else if (type.isEnum()) {
+                for (Object constant : type.getEnumConstants()) {
+                    if (((Enum<?>) constant).name().equals(value)) {
+                        return constant;
+                    }
+                }
+                throw new IllegalArgumentException("No constant "+ value +" in "+ type.getSimpleName());
+            } else {
+                throw new IllegalArgumentException("Cannot seek on "+ attribute.getName());
+            }
+        }
+    }
+
+    /** Position of a keyset query: only rows coming after (or before) the row with the given sort key are returned. */
+    private static class Seek {
+        final List<?> key;
+        final boolean forward;
+        final boolean inclusive;
+
+        Seek(List<?> key, boolean forward, boolean inclusive) {
+            this.key = key;
+            this.forward = forward;
+            this.inclusive = inclusive;
+        }
     }
 
     public class Query<T> extends QueryNode<T, Query<T>> {
-        private final CriteriaQuery<T> typedQuery;
         private QueryRange range = QueryRange.ALL;
+        private Seek seek = null;
         private LockModeType lockMode = null;
+        private boolean cacheable = false;
         private List<Ordering<? super T>> orders = new ArrayList<>();
+        private List<PluralAttribute<? super T, ?, ?>> fetches = new ArrayList<>();
 
         public Query(Class<T> persistentClass) {
-            this(persistentClass, session.getCriteriaBuilder().createQuery(persistentClass));
-        }
-
-        public Query(Class<T> persistentClass, CriteriaQuery<T> cq) {
-            super(cq, persistentClass);
-            this.typedQuery = cq;
+            super(session.getCriteriaBuilder().createQuery(persistentClass), persistentClass);
         }
 
         public Query<T> addOrder(Ordering<? super T> order) {
             this.orders.add(order);
             return this;
         }
+        /** Initialise the given lazy collection of all rows returned by {@link #list()}, with one query per
+         * collection rather than one per row (or per batch of rows) when they are first accessed. Collections are
+         * not fetch-joined to the main query, so that limits still apply to rows, and fetching several collections
+         * does not multiply the rows.
+         *
+         * @return this
+         */
+        public Query<T> fetch(PluralAttribute<? super T, ?, ?> attribute) {
+            this.fetches.add(attribute);
+            return this;
+        }
+
+        /** Keep the ids returned by {@link #list()} in the query cache, until one of the queried tables is modified.
+         * Only worth it for frequent queries on tables that rarely change, whose entities are themselves in the
+         * second-level cache.
+         *
+         * @return this
+         */
+        public Query<T> cacheable() {
+            this.cacheable = true;
+            return this;
+        }
+
         /*
                 public Subquery join(String join) {
                     return new Subquery(criteria.createCriteria(join));
@@ -140,7 +273,8 @@ public abstract class CloudSpillEntityManagerDomain {
             return this;
         }
 
-        /** Set or unset the maximum number of rows.
+        /** Set or unset the maximum number of rows. If the range has a cursor, {@link #list()} will seek to it,
+         * which requires orderings to be total (for instance by ordering by id last).
          *
          * @return this
          */
@@ -149,13 +283,40 @@ public abstract class CloudSpillEntityManagerDomain {
             return this;
         }
 
+        /** Only return rows coming after the row with the given sort key (see {@link #keyOf}), or before it if
+         * {@code forward} is false. This is cheaper than an offset, as the database does not need to read the
+         * skipped rows. Overridden by cursors of the {@link #range}.
+         *
+         * @return this
+         */
+        public Query<T> seek(List<?> key, boolean forward, boolean inclusive) {
+            this.seek = new Seek(key, forward, inclusive);
+            return this;
+        }
+
         public List<T> list() {
-            final Root<T> root = typedQuery.from(this.entityClass);
+            final Seek effectiveSeek;
+            if (range.after != null) {
+                effectiveSeek = new Seek(decodeCursor(range.after), true, false);
+            } else if (range.before != null) {
+                effectiveSeek = new Seek(decodeCursor(range.before), false, false);
+            } else {
+                effectiveSeek = this.seek;
+            }
+            final boolean forward = (effectiveSeek == null || effectiveSeek.forward);
+
+            final CriteriaQuery<T> criteriaQuery = criteriaBuilder.createQuery(this.entityClass);
+            final Root<T> root = criteriaQuery.from(this.entityClass);
 
-            typedQuery.where(this.whereClause.stream().map(f -> f.apply(root)).toArray(Predicate[]::new));
-            typedQuery.orderBy(this.orders.stream().map(f -> f.on(criteriaBuilder, root)).toArray(Order[]::new));
-            TypedQuery<T> typedQuery = session.createQuery(this.typedQuery)
-                    .setFirstResult(range.offset);
+            final List<Predicate> predicates = new ArrayList<>();
+            this.whereClause.forEach(f -> predicates.add(f.apply(root)));
+            if (effectiveSeek != null) {
+                predicates.add(seekPredicate(root, effectiveSeek));
+            }
+            criteriaQuery.where(predicates.toArray(new Predicate[0]));
+            criteriaQuery.orderBy(this.orders.stream().map(f -> f.on(criteriaBuilder, root, forward)).toArray(Order[]::new));
+            TypedQuery<T> typedQuery = session.createQuery(criteriaQuery)
+                    .setFirstResult(Math.max(0, range.offset));
 
             if (range.limit != null) {
                 typedQuery = typedQuery.setMaxResults(range.limit);
@@ -164,7 +325,153 @@ public abstract class CloudSpillEntityManagerDomain {
             if (lockMode != null) {
                 typedQuery = typedQuery.setLockMode(lockMode);
             }
-            return typedQuery.getResultList();
+            if (cacheable) {
+                typedQuery = typedQuery.setHint(QueryHints.HINT_CACHEABLE, true);
+            }
+            final List<T> result = typedQuery.getResultList();
+            // a single row gains nothing from fetching in advance
+            if (result.size() > 1) {
+                for (PluralAttribute<? super T, ?, ?> attribute : fetches) {
+                    initialise(result, attribute);
+                }
+            }
+            return forward ? result : Lists.reverse(result);
+        }
+
+        private void initialise(List<T> rows, PluralAttribute<? super T, ?, ?> attribute) {
+            final CriteriaQuery<T> fetchQuery = criteriaBuilder.createQuery(this.entityClass);
+            final Root<T> root = fetchQuery.from(this.entityClass);
+            root.fetch(attribute.getName(), JoinType.LEFT);
+            fetchQuery.select(root).distinct(true).where(root.in(rows));
+            // Rows are already in the persistence context, this just fills their collections
+            session.createQuery(fetchQuery).getResultList();
+        }
+
+        /** Pass all rows to the given consumer, in batches of at most {@code batchSize} rows. Each batch is loaded by
+         * seeking after the last row of the previous one, and the persistence context is cleared between batches
+         * (discarding unflushed changes), so that memory use does not depend on the number of rows. Backward ranges
+         * (with a {@link QueryRange#before} cursor) are not supported.
+         */
+        public void forEachBatch(int batchSize, BatchConsumer<? super T> consumer) throws IOException {
+            final QueryRange initialRange = this.range;
+            if (initialRange.before != null) {
+                throw new IllegalArgumentException("Cannot iterate backwards");
+            }
+            Integer remaining = initialRange.limit;
+            QueryRange batchRange = new QueryRange(initialRange.offset,
+                    (remaining == null) ? batchSize : Math.min(batchSize, remaining),
+                    initialRange.after, null);
+            try {
+                while (remaining == null || remaining > 0) {
+                    final List<T> batch = this.range(batchRange).list();
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    consumer.accept(batch);
+                    if (batch.size() < batchRange.limit) {
+                        break;
+                    }
+                    if (remaining != null) {
+                        remaining -= batch.size();
+                    }
+                    final List<Object> lastKey = keyOf(batch.get(batch.size() - 1));
+                    session.clear();
+                    this.seek(lastKey, true, false);
+                    batchRange = QueryRange.limit((remaining == null) ? batchSize : Math.min(batchSize, remaining));
+                }
+            } finally {
+                this.range = initialRange;
+                this.seek = null;
+            }
+        }
+
+        /** Return rows around the given element, which need not itself match this query. Offset zero of the given
+         * range is the position of the element, and negative offsets designate rows preceding it. Only the returned
+         * rows are read, so this is cheap even deep into large result sets.
+         */
+        public List<T> around(T element, QueryRange range) {
+            final QueryRange initialRange = this.range;
+            final List<Object> key = keyOf(element);
+            final List<T> result = new ArrayList<>();
+            try {
+                if (range.offset < 0) {
+                    final int end = (range.limit == null) ? 0 : Math.min(0, range.offset + range.limit);
+                    result.addAll(this.seek(key, false, false)
+                            .range(new QueryRange(-end, end - range.offset))
+                            .list());
+                }
+                if (range.limit == null || range.offset + range.limit > 0) {
+                    final int start = Math.max(0, range.offset);
+                    result.addAll(this.seek(key, true, true)
+                            .range(new QueryRange(start, (range.limit == null) ? null : range.offset + range.limit - start))
+                            .list());
+                }
+            } finally {
+                this.range = initialRange;
+                this.seek = null;
+            }
+            return result;
+        }
+
+        /** Rows coming after (or before) the seek key in the current ordering: greater than the first ordering, or
+         * equal to the first and greater than the second one, etc. */
+        private Predicate seekPredicate(Root<T> root, Seek seek) {
+            if (seek.key.size() != orders.size()) {
+                throw new IllegalArgumentException("Expected "+ orders.size() +" key components, got "+ seek.key.size());
+            }
+            final List<Predicate> disjunction = new ArrayList<>();
+            final List<Predicate> equalPrefix = new ArrayList<>();
+            for (int i = 0; i < orders.size(); i++) {
+                final Ordering<? super T> order = orders.get(i);
+                final List<Predicate> conjunction = new ArrayList<>(equalPrefix);
+                conjunction.add(order.beyond(criteriaBuilder, root, seek.key.get(i), seek.forward));
+                disjunction.add(criteriaBuilder.and(conjunction.toArray(new Predicate[0])));
+                equalPrefix.add(order.equalTo(criteriaBuilder, root, seek.key.get(i)));
+            }
+            if (seek.inclusive) {
+                disjunction.add(criteriaBuilder.and(equalPrefix.toArray(new Predicate[0])));
+            }
+            return criteriaBuilder.or(disjunction.toArray(new Predicate[0]));
+        }
+
+        /** The values of the given row for each ordering of this query. */
+        public List<Object> keyOf(T row) {
+            final List<Object> key = new ArrayList<>();
+            for (Ordering<? super T> order : orders) {
+                key.add(order.valueOf(row));
+            }
+            return key;
+        }
+
+        /** An opaque representation of the position of the given row, to be used in {@link QueryRange#after} or
+         * {@link QueryRange#before}. */
+        public String cursorOf(T row) {
+            final JsonArray array = new JsonArray();
+            for (Ordering<? super T> order : orders) {
+                array.add(order.encode(order.valueOf(row)));
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    array.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private List<Object> decodeCursor(String cursor) {
+            try {
+                final JsonArray array = new JsonParser().parse(
+                        new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)).getAsJsonArray();
+                if (array.size() != orders.size()) {
+                    throw new IllegalArgumentException("Cursor does not match query ordering");
+                }
+                final List<Object> key = new ArrayList<>();
+                for (int i = 0; i < orders.size(); i++) {
+                    final JsonElement element = array.get(i);
+                    key.add(orders.get(i).decode(element.isJsonNull() ? null : element.getAsString()));
+                }
+                return key;
+            } catch (IllegalArgumentException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Malformed cursor", e);
+            }
         }
 
         @Override
@@ -177,58 +484,43 @@ public abstract class CloudSpillEntityManagerDomain {
         }
 
         public long getTotalCount() {
+            return count(null);
+        }
+
+        /** Number of rows preceding the given element. Prefer {@link #around} to compute neighbours, as this needs
+         * to count all those rows. */
+        public int indexOf(T element) {
+            final Seek preceding = new Seek(keyOf(element), false, false);
+            return (int) count(root -> seekPredicate(root, preceding));
+        }
+
+        private long count(Function<Root<T>, Predicate> extra) {
             final CriteriaQuery<Long> totalQuery = session.getCriteriaBuilder().createQuery(Long.class);
             final Root<T> root = totalQuery.from(this.entityClass);
 
-            totalQuery.where(this.whereClause.stream().map(f -> f.apply(root)).toArray(Predicate[]::new));
+            final List<Predicate> predicates = new ArrayList<>();
+            this.whereClause.forEach(f -> predicates.add(f.apply(root)));
+            if (extra != null) {
+                predicates.add(extra.apply(root));
+            }
+            totalQuery.where(predicates.toArray(new Predicate[0]));
             return session.createQuery(totalQuery
                     .select(session.getCriteriaBuilder().count(root)))
                     .getSingleResult();
         }
+    }
 
-        public int indexOf(Item element) {
-            /*
-             less than first ordering, or equal to first, and less than second one, etc
-             */
-            this.add(root -> {
-                List<Predicate> disjunction = new ArrayList<>();
-                for (int i = 0; i < orders.size(); i++) {
-                    List<Predicate> conjunction = new ArrayList<>();
-                    for (int j = 0; j < i; j++) {
-                        final SingularAttribute<? super T, ?> attribute = orders.get(j).attribute;
-                        conjunction.add(getCriteriaBuilder().equal(root.get(attribute), getAttributeValue(element, attribute)));
-                    }
-                    final Ordering<? super T> order = orders.get(i);
-                    order.getAttribute(new ComparableAttributeConsumer<T>() {
-                                           @Override
-                                           public <V extends Comparable<? super V>> void accept(SingularAttribute<? super T, V> attribute) {
-
-                                               final Path<V> expression = root.get(attribute);
-                                               final V value = getAttributeValue(element, attribute);
-
-                                               conjunction.add(order.ascending ?
-                                                       getCriteriaBuilder().lessThan(expression, value) :
-                                                       getCriteriaBuilder().greaterThan(expression, value));
-                                           }
-                                       }
-                    );
-
-                    disjunction.add(getCriteriaBuilder().and(conjunction.toArray(new Predicate[0])));
-                }
-                return getCriteriaBuilder().or(disjunction.toArray(new Predicate[0]));
-            });
-
-            return (int)this.getTotalCount();
-        }
-
-        private <V> V getAttributeValue(Item item, SingularAttribute<? super T, V> attribute) {
-            try {
-                // Class.cast(x) looks nice but doesn't work with primitives
-                return (V)/*attribute.getBindableJavaType().cast*/(((Method) attribute.getJavaMember()).invoke(item));
-            } catch (ReflectiveOperationException e) {
-                throw new RuntimeException();
-            }
+    /** Create a native insert, update or delete statement modifying the given tables. Hibernate does not parse native
+     * statements, and would otherwise evict the whole second-level cache when they are executed, rather than only
+     * the entities and collections stored in those tables.
+     */
+    public static javax.persistence.Query createNativeUpdate(EntityManager em, String sql, String... tables) {
+        final javax.persistence.Query query = em.createNativeQuery(sql);
+        final SQLQuery sqlQuery = query.unwrap(SQLQuery.class);
+        for (String table : tables) {
+            sqlQuery.addSynchronizedQuerySpace(table);
         }
+        return query;
     }
 
     public <T> T get(Class<T> persistentClass, Object id) {
@@ -253,6 +545,20 @@ public abstract class CloudSpillEntityManagerDomain {
         session.flush();
     }
 
+    /** Run the given action once the current transaction has been committed. It is not run if the transaction is
+     * rolled back. */
+    public void afterCommit(Runnable action) {
+        afterCommit.add(action);
+    }
+
+    /** Called by the transaction owner after a successful commit. */
+    public void committed() {
+        for (Runnable action : afterCommit) {
+            action.run();
+        }
+        afterCommit.clear();
+    }
+
     public EntityManager getEntityManager() {
         return session;
     }
@@ -14,6 +14,7 @@ import org.gamboni.cloudspill.shared.util.UrlStringBuilder;
 import java.time.LocalDate;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
@@ -236,6 +237,16 @@ public class GalleryPart implements Java8SearchCriteria<BackendItem> {
             GalleryPart.this.applyGeneralSecurity(itemQuery, credentials);
         }
 
+        @Override
+        public String getCountKey(ItemCredentials credentials) {
+            // Same condition as applyGeneralSecurity()
+            final boolean unrestricted = hasKeyProtection() &&
+                    (GalleryPart.this.key.equals(this.providedKey) || credentials.getAuthStatus() == ItemCredentials.AuthenticationStatus.LOGGED_IN);
+            return unrestricted ?
+                    new TreeSet<>(getEffectiveTags()) +"|"+ getFrom() +"|"+ getTo() +"|unrestricted" :
+                    GalleryPart.this.getCountKey(credentials);
+        }
+
         @Override
         public ItemCredentials getCredentialForPattern(String itemKey) {
             if (providedKey != null) {
@@ -3,6 +3,8 @@
  */
 package org.gamboni.cloudspill.domain;
 
+import org.gamboni.cloudspill.shared.domain.JpaItem_;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
@@ -31,6 +33,11 @@ public class ServerDomain extends CloudSpillEntityManagerDomain {
 		return new CloudSpillEntityManagerDomain.Query<>(Item.class);
 	}
 
+	/** Like {@link #selectItem()}, for items shown in lists (galleries, dumps), which need the tags of each item. */
+	public Query<Item> selectItemList() {
+		return selectItem().fetch(JpaItem_.tags);
+	}
+
 	public Query<GalleryPart> selectGalleryPart() {
 		return new Query<>(GalleryPart.class);
 	}
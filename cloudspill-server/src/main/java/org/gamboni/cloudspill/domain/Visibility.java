@@ -0,0 +1,47 @@
+package org.gamboni.cloudspill.domain;
+
+import org.gamboni.cloudspill.shared.domain.Items;
+
+import java.util.Set;
+
+/** Who may see an item, as determined by its tags. Stored on items so that security checks do not need to look at
+ * their tags.
+ * <p>
+ * Constants are declared in increasing visibility order, which is also their order in the database.
+ * </p>
+ *
+ * @author tendays
+ */
+public enum Visibility {
+    /** Only visible to the owner (and administrators). */
+    PRIVATE,
+    /** Visible to all logged in users, due to the "@users" tag. */
+    USERS,
+    /** Visible to everybody, due to the "public" tag. */
+    PUBLIC;
+
+    public static final String USERS_TAG = "@users";
+
+    public static Visibility of(Set<String> tags) {
+        if (Items.isPublic(tags)) {
+            return PUBLIC;
+        } else if (tags.contains(USERS_TAG)) {
+            return USERS;
+        } else {
+            return PRIVATE;
+        }
+    }
+
+    /** Whether changing the given tags may change the visibility of an item. */
+    public static boolean isAffectedBy(Set<String> tags) {
+        return Items.isPublic(tags) || tags.contains(USERS_TAG);
+    }
+
+    /** SQL expression computing the visibility of an Item row from its tags, given the alias of the Item table. */
+    public static String sqlOf(String itemAlias) {
+        final String tags = "(select t.tags from Item_tags t where t.Item_id = "+ itemAlias +".id)";
+        return "(case when 'public' in "+ tags +" then "+ PUBLIC.ordinal() +
+                " when '"+ USERS_TAG +"' in "+ tags +" then "+ USERS.ordinal() +
+                " else "+ PRIVATE.ordinal() +" end)";
+    }
+}
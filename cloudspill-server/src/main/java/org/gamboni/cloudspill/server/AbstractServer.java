@@ -11,12 +11,16 @@ import org.gamboni.cloudspill.domain.User;
 import org.gamboni.cloudspill.domain.User_;
 import org.gamboni.cloudspill.server.html.AbstractRenderer;
 import org.gamboni.cloudspill.server.html.OutputModel;
+import org.gamboni.cloudspill.shared.api.CompactCsv;
 import org.gamboni.cloudspill.shared.api.ItemCredentials;
 import org.gamboni.cloudspill.shared.api.LoginState;
 import org.gamboni.cloudspill.shared.domain.ClientUser;
 import org.gamboni.cloudspill.shared.domain.InvalidPasswordException;
 import org.gamboni.cloudspill.shared.domain.IsUser;
 import org.gamboni.cloudspill.shared.util.Log;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
 
 import java.io.File;
 import java.util.Base64;
@@ -46,6 +50,10 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 	@Inject
 	EntityManagerFactory sessionFactory;
 
+	protected final TokenCache tokenCache = new TokenCache();
+
+	protected final PasswordCache passwordCache = new PasswordCache();
+
 	protected interface TransactionBody<S extends CloudSpillEntityManagerDomain, R> {
 	    	R run(S s) throws Exception;
 	    }
@@ -69,7 +77,9 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 	public enum ContentType {
 		// TODO res.type(mime)
 		JSON("application/json; charset=UTF-8"),
-		CSV("text/csv; charset=UTF-8");
+		CSV("text/csv; charset=UTF-8"),
+		/** Only supported by item list dumps, see {@link CompactCsv}. */
+		COMPACT(CompactCsv.MIME);
 		public final String mime;
 
 		ContentType(String mime) {
@@ -86,6 +96,10 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 		return acceptHeader != null && acceptHeader.equals("text/csv");
 	}
 
+	protected boolean isCompactRequested(Request req) {
+		return CompactCsv.isRequested(req.headers("Accept"));
+	}
+
 	protected boolean isJsonRequested(Request req) {
 		final String acceptHeader = req.headers("Accept");
 		return acceptHeader != null && acceptHeader.equals("application/json");
@@ -171,13 +185,12 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 					credentials.match(new ItemCredentials.Matcher<InvalidPasswordException>() {
 						@Override
 						public void when(ItemCredentials.UserPassword password) throws InvalidPasswordException {
-							credentials.user.verifyPassword(password.getPassword());
+							verifyPassword(password);
 						}
 
 						@Override
 						public void when(ItemCredentials.UserToken token) throws InvalidPasswordException {
-							final LoginState state = getUserTokenState(token.user, token.id, token.secret);
-							if (state != LoginState.LOGGED_IN) {
+							if (!isLoggedIn(token)) {
 								throw new InvalidPasswordException("User token #"+ token.id +" has not been validated");
 							}
 						}
@@ -203,6 +216,30 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 
 	protected abstract LoginState getUserTokenState(IsUser user, long id, String secret);
 
+	/** Verify the given password, using {@link #passwordCache} for users stored in the database. */
+	protected void verifyPassword(ItemCredentials.UserPassword password) throws InvalidPasswordException {
+		if (password.user instanceof User) {
+			passwordCache.verify((User) password.user, password.getPassword());
+		} else {
+			password.user.verifyPassword(password.getPassword());
+		}
+	}
+
+	/** True if the given token has been validated. Validated tokens are cached, so implementations must call
+	 * {@link TokenCache#revoke} when deleting a token. */
+	protected boolean isLoggedIn(ItemCredentials.UserToken token) {
+		if (tokenCache.get(token) != null) {
+			return true;
+		}
+		if (getUserTokenState(token.user, token.id, token.secret) != LoginState.LOGGED_IN) {
+			return false;
+		}
+		if (token.user instanceof User) {
+			tokenCache.put(token, (User) token.user);
+		}
+		return true;
+	}
+
 	protected OrHttpError<ItemCredentials.UserCredentials> getUnverifiedCredentials(Request req, S session) {
 		final String authHeader = req.headers("Authorization");
 		if (authHeader == null || authHeader.startsWith(ItemCredentials.UserToken.AUTH_TYPE +" ")) {
@@ -214,6 +251,11 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 				final ItemCredentials.UserToken clientToken = ItemCredentials.UserToken.decodeCookie(
 						MoreObjects.firstNonNull(cookie, authString)
 				);
+				/* Validated tokens carry a copy of their user, no need to load it */
+				final User cached = tokenCache.get(clientToken);
+				if (cached != null) {
+					return new OrHttpError<>(new ItemCredentials.UserToken(cached, clientToken.id, clientToken.secret));
+				}
 				String username = clientToken.user.getName();
 				return new OrHttpError<>(
 						getUser(username, session)
@@ -251,6 +293,7 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 		final ServerDomain.Query<User> userQuery = session.selectUser();
 		final List<User> users = userQuery.add(root ->
 				session.criteriaBuilder.equal(root.get(User_.name), username))
+				.cacheable()
 				.list();
 		if (users.isEmpty()) {
 			return new OrHttpError<>(res -> {
@@ -330,9 +373,11 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 			session = sessionFactory.createEntityManager();
 			tx = session.getTransaction();
 			tx.begin();
-			R result = task.run(createDomain(session));
+			final S domain = createDomain(session);
+			R result = task.run(domain);
 			tx.commit();
 			tx = null;
+			domain.committed();
 			/* Routes may return null in case of non-2xx HTTP status code */
 			final String resultString = String.valueOf(result);
 			Log.debug("Transaction outcome: "+ (resultString.length() > 100 ? resultString.substring(0, 100).replace('\n', ' ') +"..." : resultString));
@@ -368,6 +413,28 @@ public abstract class AbstractServer<S extends CloudSpillEntityManagerDomain> {
 		}
 	}
 
+	/** Hibernate second-level and query cache usage since startup, with the number of statements sent to the
+	 * database, and the number of cached elements in each region. */
+	protected String getEntityCacheStatistics() {
+		final Statistics stats = sessionFactory.unwrap(SessionFactory.class).getStatistics();
+		final long hits = stats.getSecondLevelCacheHitCount();
+		final long lookups = hits + stats.getSecondLevelCacheMissCount();
+		final long queryHits = stats.getQueryCacheHitCount();
+		final long queryLookups = queryHits + stats.getQueryCacheMissCount();
+		final StringBuilder regions = new StringBuilder();
+		for (String region : stats.getSecondLevelCacheRegionNames()) {
+			final SecondLevelCacheStatistics regionStats = stats.getSecondLevelCacheStatistics(region);
+			if (regionStats != null) {
+				regions.append(regions.length() == 0 ? " (" : ", ")
+						.append(region).append(": ").append(regionStats.getElementCountInMemory());
+			}
+		}
+		return "Entity cache: "+ hits +"/"+ lookups +" hits"+ (lookups == 0 ? "" : " ("+ (hits * 100 / lookups) +"%)") +", "+
+				stats.getSecondLevelCachePutCount() +" puts"+ (regions.length() == 0 ? "" : regions +")") +"; query cache: "+
+				queryHits +"/"+ queryLookups +" hits"+ (queryLookups == 0 ? "" : " ("+ (queryHits * 100 / queryLookups) +"%)") +"; "+
+				stats.getPrepareStatementCount() +" statements prepared";
+	}
+
 	protected AbstractServer() {
 		/* Experimental: starting work on setting up Jetty server. Ultimate purpose is to disable getRemoteAddr() checking X-Forwarded-For. */
 		EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
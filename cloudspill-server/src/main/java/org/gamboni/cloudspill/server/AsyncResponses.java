@@ -0,0 +1,121 @@
+package org.gamboni.cloudspill.server;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+/** Lets Spark routes respond later, from another thread, so that requests waiting for an event (such as long-polling
+ * login requests) do not hold a Jetty worker thread.
+ * <p>
+ * Spark always writes the value returned by a route into the response, and closing the response completes it. Once a
+ * route has deferred its response, the response Spark sees pretends to be committed, so that Spark leaves it alone.
+ * The actual response is written through the servlet {@link AsyncContext}.
+ * </p>
+ *
+ * @author tendays
+ */
+public abstract class AsyncResponses {
+    private static final String DEFERRED = AsyncResponses.class.getName() +".deferred";
+
+    /** Writes deferred responses, so that neither the thread completing a future (which may hold a transaction, or
+     * serve other timeouts) nor other responses wait for a slow client. */
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "deferred-responses");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Configure the embedded Jetty server to support deferred responses. Must be called before defining any route,
+     * as that starts the server. */
+    public static void install() {
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory((maxThreads, minThreads, threadTimeoutMillis) ->
+                /* Same thread pool as Spark's default factory */
+                new Server((maxThreads > 0) ?
+                        new QueuedThreadPool(maxThreads, (minThreads > 0) ? minThreads : 8, (threadTimeoutMillis > 0) ? threadTimeoutMillis : 60000) :
+                        null) {
+                    @Override
+                    public void setHandler(Handler handler) {
+                        super.setHandler(new DeferrableHandler(handler));
+                    }
+                }));
+    }
+
+    /** Send the given result once it is available. If it is already available, this is equivalent to
+     * {@code result.join().get(res, onValue)}, otherwise the current thread is released and the response is sent
+     * from a separate thread once the future completes.
+     *
+     * @return the value the route must return
+     */
+    public static <T> Object respond(Request req, Response res, CompletableFuture<OrHttpError<T>> result,
+                                     OrHttpError.ItemConsumer<T> onValue) throws Exception {
+        if (result.isDone()) {
+            return result.join().get(res, onValue);
+        }
+        final AsyncContext async = req.raw().startAsync();
+        // Timeouts are the responsibility of whoever completes the future
+        async.setTimeout(0);
+        req.raw().setAttribute(DEFERRED, Boolean.TRUE);
+
+        result.whenCompleteAsync((value, error) -> {
+            final HttpServletResponse raw = (HttpServletResponse) async.getResponse();
+            try {
+                final Object body;
+                if (error == null) {
+                    body = value.get(RequestResponseFactory.create(raw), onValue);
+                } else {
+                    Log.error("Error computing deferred response", error);
+                    raw.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    body = "500 Internal Server Error";
+                }
+                if (raw.getContentType() == null) {
+                    raw.setContentType("text/html; charset=utf-8");
+                }
+                raw.getOutputStream().write(String.valueOf(body).getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                Log.error("Error sending deferred response", e);
+                raw.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                async.complete();
+            }
+        }, WRITERS);
+        return "";
+    }
+
+    /** Hides responses from Spark once they have been deferred. */
+    private static class DeferrableHandler extends HandlerWrapper {
+        DeferrableHandler(Handler handler) {
+            setHandler(handler);
+        }
+
+        @Override
+        public void handle(String target, org.eclipse.jetty.server.Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException, ServletException {
+            super.handle(target, baseRequest, request, new HttpServletResponseWrapper(response) {
+                @Override
+                public boolean isCommitted() {
+                    return request.getAttribute(DEFERRED) != null || super.isCommitted();
+                }
+            });
+        }
+    }
+}
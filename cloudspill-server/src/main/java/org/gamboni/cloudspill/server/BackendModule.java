@@ -22,6 +22,7 @@ import org.hibernate.tool.schema.TargetType;
 import java.net.URL;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.persistence.EntityManagerFactory;
@@ -61,7 +62,6 @@ abstract class BackendModule extends AbstractModule {
         prop.setProperty(AvailableSettings.PASS, "cloudspill");
         prop.setProperty(AvailableSettings.SHOW_SQL, "true");
         prop.setProperty(AvailableSettings.DIALECT, MySQLDialect.class.getName());
-        prop.setProperty(AvailableSettings.DEFAULT_BATCH_FETCH_SIZE, "50");
 
         // See https://www.databasesandlife.com/automatic-reconnect-from-hibernate-to-mysql/
         prop.setProperty(AvailableSettings.C3P0_MIN_SIZE, "5");
@@ -70,6 +70,44 @@ abstract class BackendModule extends AbstractModule {
         prop.setProperty(AvailableSettings.C3P0_MAX_STATEMENTS, "50");
         prop.setProperty(AvailableSettings.CONNECTION_PROVIDER, C3P0ConnectionProvider.class.getName());
 
+        EntityManagerFactoryBuilderImpl emfBuilder = entityManagerFactoryBuilder(dataSource, prop);
+        EntityManagerFactory emf = emfBuilder.build();
+
+        SchemaExport exp = new SchemaExport();
+        exp.setOutputFile("/tmp/t");
+        exp.execute(EnumSet.of(TargetType.STDOUT), SchemaExport.Action.CREATE, emfBuilder.getMetadata());
+
+        new SchemaMigrations().run(emf);
+
+        return emf;
+    }
+
+    /** Prepare an EntityManagerFactory on the given database, whose connection settings and dialect are in
+     * {@code prop}. Fetching and caching settings are added here, so that tests running on another database
+     * behave like the server. */
+    EntityManagerFactoryBuilderImpl entityManagerFactoryBuilder(DataSource dataSource, Properties prop) {
+        prop.setProperty(AvailableSettings.DEFAULT_BATCH_FETCH_SIZE, "50");
+
+        // Second-level and query caches, with regions configured in ehcache.xml. Only entities listed in
+        // getCachedEntities() are cached.
+        final Map<Class<?>, String> cachedEntities = getCachedEntities();
+        final boolean caching = !cachedEntities.isEmpty();
+        prop.setProperty(AvailableSettings.USE_SECOND_LEVEL_CACHE, Boolean.toString(caching));
+        prop.setProperty(AvailableSettings.USE_QUERY_CACHE, Boolean.toString(caching));
+        prop.setProperty(AvailableSettings.GENERATE_STATISTICS, "true");
+        if (caching) {
+            prop.setProperty(AvailableSettings.CACHE_REGION_FACTORY, "org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory");
+            prop.setProperty(AvailableSettings.CACHE_REGION_PREFIX, "cloudspill");
+            for (Map.Entry<Class<?>, String> entity : cachedEntities.entrySet()) {
+                prop.setProperty(org.hibernate.jpa.AvailableSettings.CLASS_CACHE_PREFIX +"."+ entity.getKey().getName(),
+                        "read-write, "+ entity.getValue());
+            }
+            for (Map.Entry<String, String> collection : getCachedCollections().entrySet()) {
+                prop.setProperty(org.hibernate.jpa.AvailableSettings.COLLECTION_CACHE_PREFIX +"."+ collection.getKey(),
+                        "read-write, "+ collection.getValue());
+            }
+        }
+
         PersistenceUnitInfo pui = new PersistenceUnitInfo() {
             @Override
             public String getPersistenceUnitName() {
@@ -125,7 +163,8 @@ abstract class BackendModule extends AbstractModule {
 
             @Override
             public SharedCacheMode getSharedCacheMode() {
-                return SharedCacheMode.UNSPECIFIED; // todo what is this
+                // Entities to cache are given as properties rather than @Cacheable annotations
+                return SharedCacheMode.ENABLE_SELECTIVE;
             }
 
             @Override
@@ -161,16 +200,21 @@ abstract class BackendModule extends AbstractModule {
 
         ImmutableMap<Object, Object> configuration = ImmutableMap.of(); // ?
 
-        EntityManagerFactoryBuilderImpl emfBuilder = new EntityManagerFactoryBuilderImpl(new PersistenceUnitInfoDescriptor(pui), configuration);
-        EntityManagerFactory emf = emfBuilder.build();
+        return new EntityManagerFactoryBuilderImpl(new PersistenceUnitInfoDescriptor(pui), configuration);
+    }
 
-        SchemaExport exp = new SchemaExport();
-        exp.setOutputFile("/tmp/t");
-        exp.execute(EnumSet.of(TargetType.STDOUT), SchemaExport.Action.CREATE, emfBuilder.getMetadata());
+    protected abstract List<Class<?>> getManagedClasses();
 
-        return emf;
+    /** Entities to keep in the second-level cache, with the name of their cache region in ehcache.xml (without the
+     * "cloudspill." prefix). Caching is disabled if this is empty. */
+    protected Map<Class<?>, String> getCachedEntities() {
+        return ImmutableMap.of();
     }
 
-    protected abstract List<Class<?>> getManagedClasses();
+    /** Collections to keep in the second-level cache, as entity class name and property name separated by a dot, with
+     * the name of their cache region. Their owning entity must be in {@link #getCachedEntities()}. */
+    protected Map<String, String> getCachedCollections() {
+        return ImmutableMap.of();
+    }
 
 }
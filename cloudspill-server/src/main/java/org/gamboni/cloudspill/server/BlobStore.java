@@ -0,0 +1,150 @@
+package org.gamboni.cloudspill.server;
+
+import org.gamboni.cloudspill.server.config.ServerConfiguration;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/** Content-addressed storage of item files, so that identical files uploaded several times (from different devices or
+ * into different folders) are stored once.
+ * <p>
+ * Each distinct content is stored once as a "blob" named after its checksum, and item files at their usual
+ * user/folder/path location are hard links to it. Code reading item files is therefore unaffected, and the reference
+ * count of a blob is its hard link count, which cannot get out of sync with the repository. Item files must never be
+ * modified in place, as that would modify all items sharing the blob.
+ * </p>
+ *
+ * @author tendays
+ */
+@Singleton
+public class BlobStore {
+    private final Path root;
+    private final boolean enabled;
+
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    @Inject
+    public BlobStore(ServerConfiguration configuration) {
+        this.root = configuration.getBlobStorePath().toPath();
+        this.enabled = configuration.useBlobStore();
+    }
+
+    /** True if new uploads should be added to the blob store. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** True if a file with the given checksum is already stored. */
+    public boolean contains(String checksum) {
+        return Files.isRegularFile(pathFor(checksum));
+    }
+
+    /** Create the given item file as a reference to the existing blob with the given checksum.
+     *
+     * @return true if the file was created, false if there is no such blob.
+     */
+    public boolean link(String checksum, File target) throws IOException {
+        final Path blob = pathFor(checksum);
+        if (!Files.isRegularFile(blob)) {
+            return false;
+        }
+        Files.createDirectories(target.toPath().getParent());
+        Files.deleteIfExists(target.toPath());
+        Files.createLink(target.toPath(), blob);
+        deduplicated.incrementAndGet();
+        reclaimed.addAndGet(Files.size(blob));
+        return true;
+    }
+
+    /** Add the given item file to the store. If a blob with the same checksum exists, the file is replaced by a
+     * reference to it. Otherwise the file becomes the blob for that checksum.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    public long add(String checksum, File file) throws IOException {
+        final Path path = file.toPath();
+        final Path blob = pathFor(checksum);
+        if (!Files.exists(blob)) {
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.createLink(blob, path);
+                return 0;
+            } catch (FileAlreadyExistsException e) {
+                // Another upload of the same contents created the blob in the meantime: deduplicate against it
+            }
+        }
+        if (Files.isSameFile(blob, path)) {
+            return 0;
+        }
+
+        final long size = Files.size(path);
+        if (size != Files.size(blob)) {
+            Log.warn("Checksum collision between "+ file +" and "+ blob +": not deduplicating");
+            return 0;
+        }
+        /* Link the blob next to the file and move it over the file, so the item file never disappears */
+        final Path temp = path.resolveSibling(path.getFileName() +".blob");
+        Files.deleteIfExists(temp);
+        Files.createLink(temp, blob);
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        deduplicated.incrementAndGet();
+        reclaimed.addAndGet(size);
+        return size;
+    }
+
+    private Path pathFor(String checksum) {
+        /* Checksums are base64-encoded: make them file-name safe */
+        final String name = checksum
+                .replace('/', '_')
+                .replace('+', '-')
+                .replace("=", "");
+        return root.resolve(name.substring(0, Math.min(2, name.length()))).resolve(name);
+    }
+
+    /** Report the space saved by the whole store, by scanning all blobs. */
+    public String getReport() throws IOException {
+        long blobs = 0;
+        long stored = 0;
+        long saved = 0;
+        long orphans = 0;
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> files = Files.walk(root)) {
+                for (Path blob : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    final long size = Files.size(blob);
+                    // One link for the blob itself, one per item file
+                    final int items = (Integer) Files.getAttribute(blob, "unix:nlink") - 1;
+                    blobs++;
+                    stored += size;
+                    if (items == 0) {
+                        orphans++;
+                    } else {
+                        saved += size * (items - 1);
+                    }
+                }
+            }
+        }
+        return "Blob store: "+ blobs +" blobs, "+ stored +" bytes stored, "+ saved +" bytes saved by deduplication, "+
+                orphans +" unreferenced blobs";
+    }
+
+    public String getStatistics() {
+        return "Blob store: "+ (enabled ? "enabled" : "disabled") +", "+ deduplicated.get() +" files deduplicated since startup, "+
+                reclaimed.get() +" bytes reclaimed";
+    }
+}
@@ -0,0 +1,127 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
+import org.gamboni.cloudspill.domain.Visibility;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/** Adds and removes tags of many items at once.
+ * <p>
+ * Items are not loaded: each batch of items is handled with one update bumping their modification date, which also
+ * locks them, one insert per added tag and one delete for all removed tags. If visibility tags are involved, a last
+ * update recomputes {@link Visibility}. Ids of items that do not exist are ignored.
+ * </p><p>
+ * Hibernate cannot tell which rows bulk statements modify, so each of them evicts the whole second-level cache region
+ * of the table it modifies: all cached items, and all cached item tags. As statements declare those tables, other
+ * regions (users, tokens, galleries) are kept.
+ * </p>
+ *
+ * @author tendays
+ */
+public class BulkTagging {
+    private static final int BATCH_SIZE = 500;
+
+    /** Tags to add to the items. */
+    public final Set<String> added;
+    /** Tags to remove from the items. */
+    public final Set<String> removed;
+
+    /** Parse a comma-separated tag list. Tags starting with '-' are to be removed rather than added. */
+    public BulkTagging(String tags) {
+        final ImmutableSet.Builder<String> added = ImmutableSet.builder();
+        final ImmutableSet.Builder<String> removed = ImmutableSet.builder();
+        for (String tag : Splitter.on(',').trimResults().omitEmptyStrings().split(tags)) {
+            if (tag.startsWith("-")) {
+                removed.add(tag.substring(1).trim());
+            } else {
+                added.add(tag);
+            }
+        }
+        this.added = added.build();
+        this.removed = removed.build();
+    }
+
+    /** All tags whose set of items may be changed by this operation. */
+    public Set<String> getAffectedTags() {
+        return ImmutableSet.<String>builder().addAll(added).addAll(removed).build();
+    }
+
+    public void apply(EntityManager em, Collection<Long> ids) {
+        // Sort ids so that concurrent operations lock rows in the same order
+        final Instant now = Instant.now();
+        for (List<Long> batch : Lists.partition(new ArrayList<>(new TreeSet<>(ids)), BATCH_SIZE)) {
+            em.createQuery("update Item i set i.updated = :now where i.id in :ids")
+                    .setParameter("now", now)
+                    .setParameter("ids", batch)
+                    .executeUpdate();
+
+            final String idList = placeholders(2, batch.size());
+            for (String tag : added) {
+                final Query insert = CloudSpillEntityManagerDomain.createNativeUpdate(em,
+                        "insert into Item_tags (Item_id, tags) " +
+                        "select i.id, ?1 from Item i where i.id in ("+ idList +") " +
+                        "and not exists (select 1 from Item_tags t where t.Item_id = i.id and t.tags = ?1)", "Item_tags")
+                        .setParameter(1, tag);
+                setParameters(insert, 2, batch);
+                insert.executeUpdate();
+            }
+
+            if (!removed.isEmpty()) {
+                final Query delete = CloudSpillEntityManagerDomain.createNativeUpdate(em,
+                        "delete from Item_tags where Item_id in ("+ idList +") " +
+                        "and tags in ("+ placeholders(2 + batch.size(), removed.size()) +")", "Item_tags");
+                setParameters(delete, 2, batch);
+                setParameters(delete, 2 + batch.size(), removed);
+                delete.executeUpdate();
+            }
+
+            if (Visibility.isAffectedBy(getAffectedTags())) {
+                final Query update = CloudSpillEntityManagerDomain.createNativeUpdate(em,
+                        "update Item i set i.visibility = "+ Visibility.sqlOf("i") +
+                        " where i.id in ("+ placeholders(1, batch.size()) +")", "Item");
+                setParameters(update, 1, batch);
+                update.executeUpdate();
+            }
+        }
+        Log.debug("Added "+ added +" and removed "+ removed +" on "+ ids.size() +" items");
+    }
+
+    /** Ids among the given ones that do not designate an existing item. */
+    public static Set<Long> missing(EntityManager em, Collection<Long> ids) {
+        final Set<Long> missing = new TreeSet<>(ids);
+        for (List<Long> batch : Lists.partition(new ArrayList<>(missing), BATCH_SIZE)) {
+            missing.removeAll(em.createQuery("select i.id from Item i where i.id in :ids", Long.class)
+                    .setParameter("ids", batch)
+                    .getResultList());
+        }
+        return missing;
+    }
+
+    static String placeholders(int position, int count) {
+        final List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add("?"+ (position + i));
+        }
+        return String.join(", ", result);
+    }
+
+    static void setParameters(Query query, int position, Collection<?> values) {
+        int index = position;
+        for (Object value : values) {
+            query.setParameter(index++, value);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.gamboni.cloudspill.server;
+
+import java.time.Instant;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** HTTP validators (RFC 7232) and cache lifetimes.
+ *
+ * @author tendays
+ */
+public abstract class CacheValidation {
+    /** Cache-Control for content that never changes for a given URL and validator, such as item contents and thumbnails
+     * (an item with different contents has a different checksum). It is private because most URLs require
+     * credentials. */
+    public static final String IMMUTABLE = "private, max-age=31536000, immutable";
+
+    /** Cache-Control for content that may change at any time, such as item metadata: clients may keep it but must
+     * revalidate it before use. */
+    public static final String REVALIDATE = "private, no-cache";
+
+    /** Format the given value as a strong entity tag. */
+    public static String entityTag(String value) {
+        return "\""+ value.replace("\"", "") +"\"";
+    }
+
+    /** Set the given validators on the response and check them against the request's If-None-Match and
+     * If-Modified-Since headers. This must be called before doing any work to produce the response body.
+     *
+     * @param etag strong entity tag as returned by {@link #entityTag}, or null if unknown
+     * @param lastModified last modification time, or null if unknown
+     * @return true if the client's copy is up to date. The response status is then 304 and no body must be sent.
+     */
+    public static boolean isNotModified(HttpServletRequest req, HttpServletResponse res, String etag, Instant lastModified) {
+        if (etag != null) {
+            res.setHeader("ETag", etag);
+        }
+        // HTTP dates have a one-second resolution
+        final long lastModifiedMillis = (lastModified == null) ? -1 : lastModified.toEpochMilli() / 1000 * 1000;
+        if (lastModified != null) {
+            res.setDateHeader("Last-Modified", lastModifiedMillis);
+        }
+
+        final boolean notModified;
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            /* If-None-Match takes precedence over If-Modified-Since */
+            notModified = (etag != null && matches(ifNoneMatch, etag));
+        } else if (lastModified != null) {
+            notModified = (lastModifiedMillis <= getDateHeader(req, "If-Modified-Since"));
+        } else {
+            notModified = false;
+        }
+
+        if (notModified) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return notModified;
+    }
+
+    /** Weak comparison of the given entity tag against a list of tags, as used by If-None-Match. */
+    private static boolean matches(String tagList, String etag) {
+        for (String tag : tagList.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -1,15 +1,17 @@
 package org.gamboni.cloudspill.server;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 import org.gamboni.cloudspill.domain.BackendItem;
 import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
@@ -32,6 +34,7 @@ import org.gamboni.cloudspill.server.query.Java8SearchCriteria;
 import org.gamboni.cloudspill.server.query.ServerSearchCriteria;
 import org.gamboni.cloudspill.shared.api.ApiElementMatcher;
 import org.gamboni.cloudspill.shared.api.CloudSpillApi;
+import org.gamboni.cloudspill.shared.api.CompactCsv;
 import org.gamboni.cloudspill.shared.api.Csv;
 import org.gamboni.cloudspill.shared.api.ItemCredentials;
 import org.gamboni.cloudspill.shared.api.ItemMetadata;
@@ -50,21 +53,31 @@ import org.gamboni.cloudspill.shared.domain.PermissionDeniedException;
 import org.gamboni.cloudspill.shared.query.QueryRange;
 import org.gamboni.cloudspill.shared.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.inject.Inject;
 import javax.persistence.Query;
 import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
 import spark.Request;
@@ -88,6 +101,8 @@ import static spark.Spark.put;
 public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain> extends AbstractServer<D> {
     private static final ItemCredentials.PublicAccess publicAccess = new ItemCredentials.PublicAccess();
 
+    @Inject
+    UploadStaging staging;
 
     protected final CloudSpillApi<Route> api = new CloudSpillApi<>("", (method, url, route) -> {
         if (method == ApiElementMatcher.HttpMethod.GET) {
@@ -120,6 +135,7 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
     public static class BadRequestException extends RuntimeException {}
 
     protected final void setupRoutes(BackendConfiguration configuration) {
+        AsyncResponses.install();
 
         /* Request Model: just the year as an int */
         final Serialiser<GalleryListPage.Model> galleryListSerialiser = (data, ct) -> {
@@ -365,33 +381,39 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
 
         /* Download a thumbnail */
         get("/thumbs/:size/:id", securedItem(ItemCredentials.AuthenticationStatus.LOGGED_IN, (req, res, session, credentials, item) -> {
-            thumbnail(res, session, ItemSecurity.mostPowerful(credentials), item, Integer.parseInt(req.params("size")));
+            final int size = Integer.parseInt(req.params("size"));
+            if (!isContentNotModified(req, res, item, "-"+ size)) {
+                thumbnail(res, session, ItemSecurity.mostPowerful(credentials), item, size);
+            }
             return "";
         }));
 
         /* Download a thumbnail */
         get("/public/thumbs/:size/:id", securedItem(ItemCredentials.AuthenticationStatus.ANONYMOUS, (req, res, session, credentials, item) -> {
-            thumbnail(res, session, ItemSecurity.mostPowerful(credentials), item, Integer.parseInt(req.params("size")));
+            final int size = Integer.parseInt(req.params("size"));
+            if (!isContentNotModified(req, res, item, "-"+ size)) {
+                thumbnail(res, session, ItemSecurity.mostPowerful(credentials), item, size);
+            }
             return "";
         }));
 
-        /* Get list of items whose id is larger than the given one. */
-        get("item/since/:id", secured((req, res, domain, credentials) -> {
-            ContentType ct = isJsonRequested(req)? ContentType.JSON : ContentType.CSV;
-            res.type(ct.mime);
-            return dump(domain, ServerSearchCriteria.ALL.withIdAtLeast(Long.parseLong(req.params("id"))), credentials, ct,
-                    DumpFormat.WITH_TOTAL).get(res);
+        /* Get list of items whose id is larger than the given one. Large results may be paged with the limit
+         * parameter, passing the "Next" cursor of a page as the after parameter of the following one.
+         * Items are sent as csv, json or compact binary (see CompactCsv) depending on the Accept header. */
+        get(api.getItemsAfterIdUrl(":id"), secured((req, res, domain, credentials) -> {
+            return dump(req, res, domain, ServerSearchCriteria.ALL.withIdAtLeast(Long.parseLong(req.params("id")))
+                            .withRange(requestedRange(req)), credentials,
+                    DumpFormat.WITH_TOTAL);
         }));
 
-        /* Get list of items updated at or later than the given timestamp. */
+        /* Get list of items updated at or later than the given timestamp. Supports the same paging parameters as
+         * item/since/:id. */
         get(api.getItemsSinceUrl(":date"), secured((req, res, domain, credentials) -> {
-            ContentType ct = isJsonRequested(req)? ContentType.JSON : ContentType.CSV;
-            res.type(ct.mime);
-            return dump(domain,
-                    ServerSearchCriteria.ALL.modifiedSince(Instant.ofEpochMilli(Long.parseLong(req.params("date")))),
+            return dump(req, res, domain,
+                    ServerSearchCriteria.ALL.modifiedSince(Instant.ofEpochMilli(Long.parseLong(req.params("date"))))
+                            .withRange(requestedRange(req)),
                     credentials,
-                ct,
-                DumpFormat.WITH_TIMESTAMP).get(res);
+                DumpFormat.WITH_TIMESTAMP);
         }));
 
         /* Add the tags specified in body to the given item. */
@@ -400,15 +422,13 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
             MassTagging dto = new MassTagging();
             dto.ids = ImmutableList.of(Long.parseLong(req.params("id")));
             dto.tags = req.body();
-            putTags(session, dto, user);
-            return true;
+            return putTags(session, dto, user).get(res);
         }));
 
         /* Mass-tagging. */
         api.putTags(secured((req, res, session, user) -> {
             MassTagging dto = new Gson().fromJson(req.body(), MassTagging.class);
-            putTags(session, dto, user);
-            return true;
+            return putTags(session, dto, user).get(res);
         }));
 
         api.setItemDescription(":id", secured((req, res, session, user) -> {
@@ -467,21 +487,63 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
             String path = req.splat()[0];
             Log.debug("user is "+ username +", folder is "+ folder +" and path is "+ path);
 
-            final String timestampHeader = req.headers(CloudSpillApi.UPLOAD_TIMESTAMP_HEADER);
-            Date timestamp = (timestampHeader == null) ? null : new Date(Long.valueOf(timestampHeader));
-            final String typeHeader = req.headers(CloudSpillApi.UPLOAD_TYPE_HEADER);
-
-            ItemType itemType = null;
-            if (typeHeader != null) {
-                try {
-                    itemType = ItemType.valueOf(typeHeader);
-                } catch (IllegalArgumentException e) {
-                    Log.warn("Received invalid item type "+ typeHeader);
-                    // Then just leave it blank
-                }
+            return upload(session, credentials, req.raw().getInputStream(), folder, path, uploadMetadata(req),
+                    req.headers(CloudSpillApi.UPLOAD_CHECKSUM_HEADER)).get(res);
+        }));
+
+        /* Chunked upload: chunks are kept in the staging area until commit, when the item is created like a normal upload */
+        post(api.uploadSession(":user", ":folder", "*"), secured((req, res, session, credentials) -> {
+            String username = req.params("user");
+            if (!credentials.user.getName().equals(username)) {
+                Log.error("User "+ credentials.user.getName() +" attempted to upload to folder of user "+ username);
+                return forbidden(res, false);
+            }
+            return staging.create(username, req.params("folder"), req.splat()[0], uploadMetadata(req),
+                    req.headers(CloudSpillApi.UPLOAD_CHECKSUM_HEADER));
+        }));
+
+        get(api.uploadSessionStatus(":session"), secured((req, res, session, credentials) -> {
+            final UploadStaging.Session upload = staging.get(req.params("session"));
+            if (upload == null || !upload.getUser().equals(credentials.user.getName())) {
+                return uploadSessionNotFound(res);
+            }
+            res.type("text/plain");
+            return Joiner.on("\n").join(upload.getReceivedChunks());
+        }));
+
+        put(api.uploadChunk(":session", ":number"), secured((req, res, session, credentials) -> {
+            final UploadStaging.Session upload = staging.get(req.params("session"));
+            if (upload == null || !upload.getUser().equals(credentials.user.getName())) {
+                return uploadSessionNotFound(res);
             }
+            final String checksum = req.headers(CloudSpillApi.UPLOAD_CHUNK_CHECKSUM_HEADER);
+            final Integer number = Ints.tryParse(req.params("number"));
+            if (checksum == null || number == null || number < 0 ||
+                    !upload.putChunk(number, req.raw().getInputStream(), checksum)) {
+                return badRequest(res);
+            }
+            return "";
+        }));
 
-            return upload(session, credentials, req.raw().getInputStream(), folder, path, new ItemMetadata(timestamp, itemType)).get(res);
+        post(api.commitUpload(":session"), secured((req, res, session, credentials) -> {
+            final UploadStaging.Session upload = staging.get(req.params("session"));
+            if (upload == null || !upload.getUser().equals(credentials.user.getName())) {
+                return uploadSessionNotFound(res);
+            }
+            final String countHeader = req.headers(CloudSpillApi.UPLOAD_CHUNK_COUNT_HEADER);
+            final Integer count = (countHeader == null) ? null : Ints.tryParse(countHeader);
+            try (InputStream data = (count == null || count < 0) ? null : upload.assemble(count)) {
+                if (data == null) {
+                    return badRequest(res);
+                }
+                final OrHttpError<Long> result = upload(session, credentials, data, upload.getFolder(), upload.getPath(),
+                        upload.getMetadata(), upload.getChecksum());
+                if (result.hasValue()) {
+                    // Keep the chunks if the upload or its commit fails, so that the client can retry the commit
+                    session.afterCommit(upload::delete);
+                }
+                return result.get(res);
+            }
         }));
 
         LoginPage lp = new LoginPage(configuration);
@@ -538,37 +600,42 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
         });
 
         /* Login, step 2: wait for an authentication token to be validated */
-        post(api.login(), (req, res) ->  transacted(session -> getUnverifiedCredentials(req, session))
+        post(api.login(), (req, res) -> {
+            final OrHttpError<ItemCredentials.UserToken> token = transacted(session -> getUnverifiedCredentials(req, session))
                 .flatMap(credentials ->
                     (credentials == null ?
                             badRequest() :
-                            credentials.map(new ItemCredentials.Mapper<OrHttpError<LoginState>>() {
+                            credentials.map(new ItemCredentials.Mapper<OrHttpError<ItemCredentials.UserToken>>() {
                                 @Override
-                                public OrHttpError<LoginState> when(ItemCredentials.UserPassword password) {
+                                public OrHttpError<ItemCredentials.UserToken> when(ItemCredentials.UserPassword password) {
                                     // Basic authentication shouldn't use login() calls...
                                     return badRequest();
                                 }
 
                                 @Override
-                                public OrHttpError<LoginState> when(ItemCredentials.UserToken token) {
+                                public OrHttpError<ItemCredentials.UserToken> when(ItemCredentials.UserToken token) {
                                     String username = token.user.getName();
                                     Log.debug("Handling login request for " + username + " with credentials " +
                                             extract(token.secret));
 
-                                    return login(token);
+                                    return new OrHttpError<>(token);
                                 }
 
                                 @Override
-                                public OrHttpError<LoginState> when(ItemCredentials.PublicAccess pub) {
+                                public OrHttpError<ItemCredentials.UserToken> when(ItemCredentials.PublicAccess pub) {
                                     return badRequest();
                                 }
 
                                 @Override
-                                public OrHttpError<LoginState> when(ItemCredentials.ItemKey key) {
+                                public OrHttpError<ItemCredentials.UserToken> when(ItemCredentials.ItemKey key) {
                                     return badRequest();
                                 }
-                            })))
-                    .get(res, LoginState::name));
+                            })));
+            /* Waiting for the token to be validated must not hold a request thread */
+            return token.hasValue() ?
+                    AsyncResponses.respond(req, res, login(token.orThrow()), LoginState::name) :
+                    token.get(res);
+        });
 
         post(api.logout(), (req, res) -> transacted(session ->
             getUnverifiedCredentials(req, session).flatMap(credentials -> {
@@ -646,7 +713,7 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
                 if (part.getName().equals("files[]") && part.getSize() > 0) {
                     final OrHttpError<Long> newId = upload(session, user, part.getInputStream(), "web", part.getSubmittedFileName(),
                             new ItemMetadata(null,
-                            ItemType.fromMime(part.getContentType())));
+                            ItemType.fromMime(part.getContentType())), null);
                     newId.ifPresent(ids::add);
                 } else {
                     Log.info("Skipping "+ part);
@@ -656,6 +723,29 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
         }));
     }
 
+    private String uploadSessionNotFound(Response res) {
+        res.status(HttpServletResponse.SC_NOT_FOUND);
+        return "No such upload session";
+    }
+
+    /** Read the item metadata headers sent with an upload. */
+    private ItemMetadata uploadMetadata(Request req) {
+        final String timestampHeader = req.headers(CloudSpillApi.UPLOAD_TIMESTAMP_HEADER);
+        Date timestamp = (timestampHeader == null) ? null : new Date(Long.valueOf(timestampHeader));
+        final String typeHeader = req.headers(CloudSpillApi.UPLOAD_TYPE_HEADER);
+
+        ItemType itemType = null;
+        if (typeHeader != null) {
+            try {
+                itemType = ItemType.valueOf(typeHeader);
+            } catch (IllegalArgumentException e) {
+                Log.warn("Received invalid item type "+ typeHeader);
+                // Then just leave it blank
+            }
+        }
+        return new ItemMetadata(timestamp, itemType);
+    }
+
     private Long nullableLong(String string) {
         return string == null ? null :
                 Long.parseLong(string);
@@ -678,7 +768,9 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
 
     protected abstract OrHttpError<Object> deleteToken(ItemCredentials.UserCredentials credentials, D session, String username, long tokenId);
 
-    protected abstract OrHttpError<LoginState> login(ItemCredentials.UserToken credentials);
+    /** Wait for the given token to be validated, for a bounded amount of time. The returned future must be completed
+     * when the token is validated or invalidated, or on timeout, without blocking any thread while waiting. */
+    protected abstract CompletableFuture<OrHttpError<LoginState>> login(ItemCredentials.UserToken credentials);
 
     protected abstract OrHttpError<String> logout(D session, ItemCredentials.UserToken credentials);
 
@@ -702,14 +794,13 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
         credentials.match(new ItemCredentials.Matcher<AccessDeniedException>() {
             @Override
             public void when(ItemCredentials.UserPassword password) throws AccessDeniedException {
-                password.user.verifyPassword(password.getPassword());
+                verifyPassword(password);
                 authorise(password.user, item);
             }
 
             @Override
             public void when(ItemCredentials.UserToken token) throws AccessDeniedException {
-                final LoginState state = getUserTokenState(token.user, token.id, token.secret);
-                if (state != LoginState.LOGGED_IN) {
+                if (!isLoggedIn(token)) {
                     throw new InvalidPasswordException("User token #"+ token.id +"' has not been validated");
                 }
                 authorise(token.user, item);
@@ -724,7 +815,9 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
 
             @Override
             public void when(ItemCredentials.ItemKey key) throws InvalidPasswordException {
-                if (!key.checksum.equals(item.getChecksum())) {
+                if (item.getChecksum() == null) {
+                    throw new InvalidPasswordException("Item #"+ item.getServerId() +" has no checksum yet");
+                } else if (!item.getChecksum().equals(key.checksum)) {
                     throw new InvalidPasswordException("Bad key value. Expected " + item.getChecksum() + ", got " + key.checksum);
                 }
             }
@@ -786,19 +879,42 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
                 GalleryPage.Model model = new GalleryPage.Model(mostPowerful, null, ItemSet.of(item), false);
                 ContentType ct = isCsvRequested(req) ? ContentType.CSV : ContentType.JSON;
                 res.type(ct.mime);
+                res.header("Vary", "Accept");
+                res.header("Cache-Control", CacheValidation.REVALIDATE);
+                if (item.getUpdated() != null && CacheValidation.isNotModified(req.raw(), res.raw(),
+                        CacheValidation.entityTag(item.getChecksum() +"-"+ item.getUpdated().toEpochMilli() +"-"+ ct.name()),
+                        item.getUpdated())) {
+                    return new OrHttpError<>("");
+                }
                 return new OrHttpError<>(dump(model, ct, DumpFormat.WITH_TOTAL));
+            } else if (isContentNotModified(req, res, item, "")) {
+                return new OrHttpError<>("");
             } else {
-                download(res, session, mostPowerful, item);
-                return new OrHttpError<>(String.valueOf(res.status()));
+                download(req, res, session, mostPowerful, item);
+                // The response, including its Content-Length, is complete: nothing may be appended to it
+                return new OrHttpError<>("");
             }
         }
     }
 
+    /** Set validators and cache lifetime for the contents of the given item (or something derived from it, like a
+     * thumbnail, identified by {@code variant}).
+     *
+     * @return true if the client's copy is up to date, in which case nothing must be sent.
+     */
+    private boolean isContentNotModified(Request req, Response res, BackendItem item, String variant) {
+        if (item.getChecksum() == null) {
+            return false;
+        }
+        res.header("Cache-Control", CacheValidation.IMMUTABLE);
+        return CacheValidation.isNotModified(req.raw(), res.raw(), CacheValidation.entityTag(item.getChecksum() + variant), null);
+    }
+
     private QueryRange requestedRange(Request req) {
         int offset = Integer.parseInt(req.queryParamOrDefault("offset", "0"));
         String limit = req.queryParams("limit");
-        return (limit == null) ? QueryRange.offset(offset) :
-                new QueryRange(offset, Integer.valueOf(limit));
+        return new QueryRange(offset, (limit == null) ? null : Integer.valueOf(limit),
+                req.queryParams("after"), req.queryParams("before"));
     }
 
     /** Work around what looks like Whatsapp bug: even though url encodes correctly + as %2B,
@@ -870,9 +986,14 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
      * are provided, access must be denied. */
     protected abstract OrHttpError<? extends BackendItem> loadItem(D session, long id, List<ItemCredentials> credentials);
 
+    /** Store a new item.
+     *
+     * @param checksum checksum of the data announced by the client, or null if unknown. This allows skipping storage
+     *                 of contents that are already known.
+     */
     protected abstract OrHttpError<Long> upload(D session, ItemCredentials.UserCredentials user, InputStream inputStream,
                                    String folder, String path,
-                                   ItemMetadata metadata) throws IOException;
+                                   ItemMetadata metadata, String checksum) throws IOException;
 
     protected abstract OrHttpError<GalleryListPage.Model> galleryList(ItemCredentials credentials, D domain);
 
@@ -888,25 +1009,20 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
 
     protected abstract OrHttpError<GalleryListPage.Model> dayList(ItemCredentials credentials, D domain, int year);
 
-    /** Add the given comma-separated tags to the specified object. If a tag starts with '-' then it is removed instead.
+    /** Add the given comma-separated tags to the specified objects. If a tag starts with '-' then it is removed instead.
      * <p>
      * NOTE: anybody can change tags of anybody's item.
      */
-    protected void putTags(D session, MassTagging dto, ItemCredentials credentials) throws IOException {
-        dto.ids.forEach(id -> {
-            final BackendItem item = itemForUpdate(session, id);
-
-            final Set<String> existingTags = item.getTags();
-            Splitter.on(',').split(dto.tags).forEach(t -> {
-                if (t.startsWith("-")) {
-                    existingTags.remove(t.substring(1).trim());
-                } else {
-                    existingTags.add(t.trim());
-                }
-            });
-        });
+    protected OrHttpError<Boolean> putTags(D session, MassTagging dto, ItemCredentials credentials) throws IOException {
+        final BulkTagging tagging = new BulkTagging(dto.tags);
+        tagging.apply(session.getEntityManager(), dto.ids);
+        onTagsChanged(session, dto.ids, tagging);
+        return new OrHttpError<>(true);
     }
 
+    /** Called by {@link #putTags} after changing the tags of the given items. */
+    protected void onTagsChanged(D session, List<Long> ids, BulkTagging tagging) {}
+
     protected void setItemDescription(D session, long id, String description, ItemCredentials credentials) throws IOException {
         final BackendItem item = itemForUpdate(session, id);
         item.setDescription(description);
@@ -937,7 +1053,12 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
             @Override
             MetadataRepresentation dumpMetadata(Java8SearchCriteria<? extends BackendItem> criteria, ItemSet itemSet, Instant timestamp,
                                                 MetadataRepresentation representation) {
-                return representation.put("Total", itemSet.totalCount);
+                representation.put("Total", itemSet.totalCount);
+                if (itemSet.firstCursor != null) {
+                    representation.put("Previous", itemSet.firstCursor)
+                            .put("Next", itemSet.lastCursor);
+                }
+                return representation;
             }
         },
         WITH_TIMESTAMP {
@@ -1015,9 +1136,115 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
         }
     }
 
-    private OrHttpError<String> dump(D domain, ServerSearchCriteria criteria, ItemCredentials credentials, ContentType ct, DumpFormat dumpFormat) throws Exception {
-        return getQueryLoader(domain, credentials).load(criteria).map(set -> dump(
-                new GalleryPage.Model(credentials, criteria, set, false), ct, dumpFormat));
+    private static class MapMetadataRepresentation implements MetadataRepresentation {
+        private final Map<String, String> values = new LinkedHashMap<>();
+
+        @Override
+        public MetadataRepresentation put(String key, String value) {
+            if (value != null) {
+                values.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public MetadataRepresentation put(String key, long value) {
+            values.put(key, Long.toString(value));
+            return this;
+        }
+    }
+
+    /** Write the items matching the given criteria into the response as they are loaded, followed by metadata. */
+    private Object dump(Request req, Response res, D domain, ServerSearchCriteria criteria, ItemCredentials credentials, DumpFormat dumpFormat) throws Exception {
+        final ContentType ct = isCompactRequested(req) ? ContentType.COMPACT :
+                isJsonRequested(req) ? ContentType.JSON : ContentType.CSV;
+        res.type(ct.mime);
+        res.header("Vary", "Accept");
+        final DumpWriter writer = new DumpWriter(res.raw(), ct, CompactCsv.isGzipRequested(req.headers("Accept")));
+        final OrHttpError<ItemSet> result = getQueryLoader(domain, credentials).stream(criteria, writer::write);
+        if (!result.hasValue()) {
+            return result.get(res);
+        }
+        writer.finish(criteria, result.orThrow(), dumpFormat);
+        return "";
+    }
+
+    /** Serialises items directly into an HTTP response. Nothing is written before the first batch of items, so that
+     * errors can still be reported. */
+    private static class DumpWriter {
+        private final HttpServletResponse response;
+        private final ContentType ct;
+        private final boolean gzip;
+        private Writer out = null;
+        private JsonWriter json = null;
+        private CompactCsv.Encoder<BackendItem> compact = null;
+        private Instant timestamp = Instant.EPOCH;
+
+        DumpWriter(HttpServletResponse response, ContentType ct, boolean gzip) {
+            this.response = response;
+            this.ct = ct;
+            this.gzip = gzip;
+        }
+
+        private void start() throws IOException {
+            if (out != null || compact != null) {
+                return;
+            }
+            if (ct == ContentType.COMPACT) {
+                compact = new CompactCsv.Encoder<>(BackendItem.CSV,
+                        new BufferedOutputStream(response.getOutputStream()), gzip);
+                return;
+            }
+            out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+            if (ct == ContentType.JSON) {
+                json = new JsonWriter(out);
+                json.beginObject().name("data").beginArray();
+            } else {
+                out.write(BackendItem.CSV.header() + "\n");
+            }
+        }
+
+        void write(List<? extends BackendItem> batch) throws IOException {
+            start();
+            for (BackendItem item : batch) {
+                if (item.getUpdated() != null && item.getUpdated().isAfter(timestamp)) {
+                    timestamp = item.getUpdated();
+                }
+                if (compact != null) {
+                    compact.write(item);
+                } else if (json != null) {
+                    JsonObject row = new JsonObject();
+                    BackendItem.CSV.toMap(item, row::addProperty);
+                    new Gson().toJson(row, json);
+                } else {
+                    out.write(BackendItem.CSV.serialise(item));
+                    out.write("\n");
+                }
+            }
+            // send each batch as soon as it is ready
+            if (compact != null) {
+                compact.flush();
+            } else {
+                out.flush();
+            }
+        }
+
+        void finish(Java8SearchCriteria<? extends BackendItem> criteria, ItemSet itemSet, DumpFormat dumpFormat) throws IOException {
+            start();
+            if (compact != null) {
+                final MapMetadataRepresentation metadata = new MapMetadataRepresentation();
+                dumpFormat.dumpMetadata(criteria, itemSet, timestamp, metadata);
+                compact.finish(metadata.values);
+                return;
+            } else if (json != null) {
+                // galleries do not yet support metadata in forwarder, so disabling that for now (like in the non-streaming dump)
+                json.endArray().endObject();
+            } else {
+                out.write(dumpFormat.dumpMetadata(criteria, itemSet, timestamp,
+                        new OnePerLineMetadataRepresentation(new StringBuilder())).toString());
+            }
+            out.flush();
+        }
     }
 
     private String dump(GalleryPage.Model model, ContentType ct, DumpFormat dumpFormat) {
@@ -1066,6 +1293,8 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
      * Download the file corresponding to the item with the given id, optionally
      * after having checked an access key.
      *
+     * @param req
+     *            HTTP Request, possibly asking for a byte range of the file
      * @param res
      *            HTTP Response used to set Forbidden status if needed
      * @param session
@@ -1075,7 +1304,7 @@ public abstract class CloudSpillBackend<D extends CloudSpillEntityManagerDomain>
      *            The item to retrieve
      * @throws IOException
      */
-    protected abstract void download(Response res, D session, ItemCredentials credentials, BackendItem item) throws IOException;
+    protected abstract void download(Request req, Response res, D session, ItemCredentials credentials, BackendItem item) throws IOException;
 
     protected abstract OrHttpError<String> ping(D session, ItemCredentials.UserCredentials credentials);
 
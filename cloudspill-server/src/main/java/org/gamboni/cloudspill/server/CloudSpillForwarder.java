@@ -27,6 +27,7 @@ import org.gamboni.cloudspill.server.query.ItemSet;
 import org.gamboni.cloudspill.server.query.Java8SearchCriteria;
 import org.gamboni.cloudspill.shared.api.Base64Encoder;
 import org.gamboni.cloudspill.shared.api.CloudSpillApi;
+import org.gamboni.cloudspill.shared.api.CompactCsv;
 import org.gamboni.cloudspill.shared.api.Csv;
 import org.gamboni.cloudspill.shared.api.CsvEncoding;
 import org.gamboni.cloudspill.shared.api.ItemCredentials;
@@ -42,8 +43,8 @@ import org.gamboni.cloudspill.shared.domain.IsUser;
 import org.gamboni.cloudspill.shared.util.Log;
 import org.mindrot.jbcrypt.BCrypt;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -62,12 +63,17 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.servlet.http.HttpServletResponse;
 
+import spark.Request;
 import spark.Response;
 
 import static org.gamboni.cloudspill.shared.util.Files.append;
@@ -86,6 +92,13 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
     private final ForwarderConfiguration configuration;
     private final CloudSpillApi<ResponseHandler> remoteApi;
 
+    /** Threads relaying login requests to the remote server, which may take up to a minute each. */
+    private final ExecutorService remoteLogins = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "remote-login");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /** Temporary: keep tokens in memory */
     Multimap<String, UserAuthToken> tokens = HashMultimap.create();
 
@@ -123,6 +136,7 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
     protected OrHttpError<Object> validateToken(ItemCredentials.UserCredentials credentials, ForwarderDomain session, String username, long tokenId) {
         final ResponseHandlers.ResponseHandlerWithResult<OrHttpError<Object>> handler = passthroughHandler();
         remoteApi.validateToken(username, tokenId, ResponseHandlers.withCredentials(credentials, BASE_64_ENCODER, handler));
+        tokenCache.invalidate(tokenId);
 
         return handler.getResult();
     }
@@ -131,6 +145,7 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
     protected OrHttpError<Object> deleteToken(ItemCredentials.UserCredentials credentials, ForwarderDomain session, String username, long tokenId) {
         final ResponseHandlers.ResponseHandlerWithResult<OrHttpError<Object>> handler = passthroughHandler();
         remoteApi.deleteToken(username, tokenId, ResponseHandlers.withCredentials(credentials, BASE_64_ENCODER, handler));
+        tokenCache.revoke(tokenId);
 
         return handler.getResult();
     }
@@ -150,7 +165,12 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
     }
 
     @Override
-    protected OrHttpError<LoginState> login(ItemCredentials.UserToken credentials) {
+    protected CompletableFuture<OrHttpError<LoginState>> login(ItemCredentials.UserToken credentials) {
+        /* The remote server long-polls: wait for it outside of request threads */
+        return CompletableFuture.supplyAsync(() -> remoteLogin(credentials), remoteLogins);
+    }
+
+    private OrHttpError<LoginState> remoteLogin(ItemCredentials.UserToken credentials) {
         try {
             final HttpURLConnection connection = (HttpURLConnection) new URL(remoteApi.login()).openConnection();
             connection.setRequestMethod("POST");
@@ -174,6 +194,7 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
 
     @Override
     protected OrHttpError<String> logout(ForwarderDomain session, ItemCredentials.UserToken credentials) {
+        tokenCache.revoke(credentials.id);
         try {
             final HttpURLConnection connection = (HttpURLConnection) new URL(remoteApi.logout()).openConnection();
             connection.setRequestMethod("POST");
@@ -394,17 +415,47 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
             String title = "";
             String description = "";
             String totalString = Integer.toString(rows.size());
+            String previous = null;
+            String next = null;
 
             String line;
             while ((line = reader.readLine()) != null) {
                 title = deserialiseAttribute(line, "Title", title);
                 description = deserialiseAttribute(line, "Description", description);
                 totalString = deserialiseAttribute(line, "Total", totalString);
+                previous = deserialiseAttribute(line, "Previous", previous);
+                next = deserialiseAttribute(line, "Next", next);
             }
-            return new ItemSet(Integer.parseInt(totalString), rows, title, description);
+            return new ItemSet(Integer.parseInt(totalString), rows, title, description, previous, next);
         });
     }
 
+    /** Load a synchronisation dump in the {@link CompactCsv} format, which is several times smaller than csv. */
+    private OrHttpError<ItemSet> deserialiseCompactStream(String url, List<ItemCredentials> credentials) {
+        final HttpURLConnection connection;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+        } catch (IOException e) {
+            Log.warn("Error communicating with remote server", e);
+            return gatewayTimeout();
+        }
+        credentials.forEach(c -> c.setHeaders(connection, BASE_64_ENCODER));
+        connection.setRequestProperty("Accept", CompactCsv.MIME_GZIP);
+        try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+            final CompactCsv.Decoder<BackendItem> decoder = new CompactCsv.Decoder<>(BackendItem.CSV, in);
+            final List<BackendItem> rows = new ArrayList<>();
+            while (decoder.hasNext()) {
+                rows.add(decoder.read(new RemoteItem()));
+            }
+            final Map<String, String> metadata = decoder.getMetadata();
+            final String total = metadata.get("Total");
+            return new OrHttpError<>(new ItemSet((total == null) ? rows.size() : Long.parseLong(total), rows, "", "",
+                    metadata.get("Previous"), metadata.get("Next")));
+        } catch (IOException e) {
+            return handleRemoteIOException(connection, e);
+        }
+    }
+
     private String deserialiseAttribute(String line, String attribute, String defaultValue) {
         if (line.startsWith(attribute +":")) {
             return CsvEncoding.unslash(line.substring(attribute.length() + 1));
@@ -423,8 +474,9 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
     }
 
     @Override
-    protected void download(Response res, ForwarderDomain session, ItemCredentials credentials, BackendItem item) throws IOException {
-        doCachedRequest(res, credentials,
+    protected void download(Request req, Response res, ForwarderDomain session, ItemCredentials credentials, BackendItem item) throws IOException {
+        doCachedRequest(req, (item.getChecksum() == null) ? null : CacheValidation.entityTag(item.getChecksum()),
+                res, credentials,
                 append(append(append(append(
                         configuration.getRepositoryPath(),
                         "full-size"),
@@ -437,11 +489,11 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
 
     @Override
     protected OrHttpError<Long> upload(ForwarderDomain session, ItemCredentials.UserCredentials user, InputStream data, String folder, String path,
-                                       ItemMetadata metadata) throws IOException {
+                                       ItemMetadata metadata, String checksum) throws IOException {
         long[] id = new long[1];
         remoteApi.upload(user.user.getName(), folder, path,
                 ResponseHandlers.withCredentials(user, BASE_64_ENCODER,
-                ApiInvokers.upload(metadata, data, result -> id[0] = result)));
+                        ApiInvokers.upload(metadata, checksum, data, result -> id[0] = result)));
         if (id[0] > 0) {
             return new OrHttpError<>(id[0]);
         } else {
@@ -452,16 +504,18 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
     }
 
     @Override
-    protected void putTags(ForwarderDomain session, MassTagging dto, ItemCredentials credentials) throws IOException {
+    protected OrHttpError<Boolean> putTags(ForwarderDomain session, MassTagging dto, ItemCredentials credentials) throws IOException {
         remoteApi.putTags(ResponseHandlers.withCredentials(credentials, BASE_64_ENCODER, connection -> {
             connection.setDoOutput(true);
             try (Writer w = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8)) {
                 new Gson().toJson(dto, w);
             }
             if (connection.getResponseCode() >= 200 && connection.getResponseCode() <= 299) {
+                // Items missing from the local cache are ignored: the remote server has already checked them
                 super.putTags(session, dto, credentials);
             }
         }));
+        return new OrHttpError<>(true);
     }
 
     @Override
@@ -479,7 +533,7 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
 
     @Override
     protected Object thumbnail(Response res, ForwarderDomain session, ItemCredentials credentials, BackendItem item, int size) throws InterruptedException, IOException {
-        return doCachedRequest(res, credentials,
+        return doCachedRequest(null, null, res, credentials,
                 append(append(append(append(
                         configuration.getRepositoryPath(),
                         String.valueOf(size)),
@@ -490,11 +544,39 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
                 "image/jpeg");
     }
 
-    private Object doCachedRequest(Response res, ItemCredentials credentials, File cache, String url, String contentType) throws IOException {
+    /** Send the given remote file, going through the local cache.
+     *
+     * @param req the request, if byte ranges should be supported. Null to always send the whole file.
+     * @param etag entity tag of the file, used to validate If-Range headers. May be null.
+     */
+    private Object doCachedRequest(Request req, String etag, Response res, ItemCredentials credentials, File cache, String url, String contentType) throws IOException {
         if (cache.exists()) {
-            try (final FileInputStream inputStream = new FileInputStream(cache);
-                 final OutputStream clientOutput = res.raw().getOutputStream()) {
-                ByteStreams.copy(inputStream, clientOutput);
+            res.header("Content-Type", contentType);
+            if (req == null) {
+                FileSender.send(cache, res.raw());
+            } else {
+                FileSender.send(cache, etag, req.raw(), res.raw());
+            }
+        } else if (req != null && req.headers("Range") != null) {
+            /* Not cached yet: relay the partial request rather than fetching (and caching) the whole file */
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            credentials.setHeaders(connection, Base64.getEncoder()::encodeToString);
+            for (String header : ImmutableList.of("Range", "If-Range")) {
+                if (req.headers(header) != null) {
+                    connection.setRequestProperty(header, req.headers(header));
+                }
+            }
+            res.status(connection.getResponseCode());
+            for (String header : ImmutableList.of("Content-Type", "Content-Length", "Content-Range", "Accept-Ranges", "Last-Modified")) {
+                if (connection.getHeaderField(header) != null) {
+                    res.header(header, connection.getHeaderField(header));
+                }
+            }
+            try (InputStream remoteInput = (connection.getResponseCode() >= 400) ?
+                    connection.getErrorStream() : connection.getInputStream()) {
+                if (remoteInput != null) {
+                    ByteStreams.copy(remoteInput, res.raw().getOutputStream());
+                }
             }
         } else {
             final URLConnection connection = new URL(url).openConnection();
@@ -579,6 +661,7 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
                     });
 
                     session.persist(u);
+                    passwordCache.invalidate(u.getName());
                 } // TODO support changing password?
 
                 return new OrHttpError<>(info);
@@ -590,7 +673,9 @@ public class CloudSpillForwarder extends CloudSpillBackend<ForwarderDomain> {
 
     @Override
     protected ItemQueryLoader getQueryLoader(ForwarderDomain session, ItemCredentials credentials) {
-        return criteria -> deserialiseStream(criteria.getUrl(remoteApi).toString(), ImmutableList.of(credentials));
+        return criteria -> criteria.isSynchronisation() ?
+                deserialiseCompactStream(criteria.getUrl(remoteApi).toString(), ImmutableList.of(credentials)) :
+                deserialiseStream(criteria.getUrl(remoteApi).toString(), ImmutableList.of(credentials));
     }
 
     @Override
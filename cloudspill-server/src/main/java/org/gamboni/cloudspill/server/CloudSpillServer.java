@@ -3,13 +3,11 @@
  */
 package org.gamboni.cloudspill.server;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.inject.Guice;
 
-import org.bytedeco.javacv.FFmpegFrameGrabber;
-import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.Java2DFrameConverter;
 import org.gamboni.cloudspill.domain.BackendItem;
 import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
 import org.gamboni.cloudspill.domain.GalleryPart;
@@ -20,6 +18,7 @@ import org.gamboni.cloudspill.domain.ServerDomain;
 import org.gamboni.cloudspill.domain.User;
 import org.gamboni.cloudspill.domain.UserAuthToken;
 import org.gamboni.cloudspill.domain.UserAuthToken_;
+import org.gamboni.cloudspill.domain.Visibility;
 import org.gamboni.cloudspill.domain.User_;
 import org.gamboni.cloudspill.lambda.MetadataExtractor;
 import org.gamboni.cloudspill.server.config.ServerConfiguration;
@@ -32,6 +31,7 @@ import org.gamboni.cloudspill.shared.api.CloudSpillApi;
 import org.gamboni.cloudspill.shared.api.ItemCredentials;
 import org.gamboni.cloudspill.shared.api.ItemMetadata;
 import org.gamboni.cloudspill.shared.api.LoginState;
+import org.gamboni.cloudspill.shared.api.MassTagging;
 import org.gamboni.cloudspill.shared.domain.AccessDeniedException;
 import org.gamboni.cloudspill.shared.domain.Comment;
 import org.gamboni.cloudspill.shared.domain.InvalidPasswordException;
@@ -39,44 +39,54 @@ import org.gamboni.cloudspill.shared.domain.IsUser;
 import org.gamboni.cloudspill.shared.domain.ItemType;
 import org.gamboni.cloudspill.shared.domain.Items;
 import org.gamboni.cloudspill.shared.query.QueryRange;
-import org.gamboni.cloudspill.shared.util.ImageOrientationUtil;
 import org.gamboni.cloudspill.shared.util.Log;
 import org.mindrot.jbcrypt.BCrypt;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
-import java.awt.image.ImageObserver;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-import java.util.function.BiFunction;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 
+import spark.Request;
 import spark.Response;
 
 import static org.gamboni.cloudspill.shared.util.Files.append;
+import static spark.Spark.get;
 import static spark.Spark.post;
 
 /** Planned general API structure:
@@ -99,22 +109,43 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 	@Inject	ServerConfiguration configuration;
 
-	/** Maps UserAuthToken ids to a Boolean saying if they have been validated.
-	 * This map only contains ids which have a pending login() call.
-	 * All read or write access must be synchronized on the Map itself, with a wait() for reads and a notifyAll() for writes.
-	 */
-	private final Map<Long, TokenWatch> watchedTokens = new HashMap<>();
+	@Inject ThumbnailCache thumbnailCache;
 
-	private static class TokenWatch {
-		int watchCount = 0;
-		LoginState state = LoginState.WAITING_FOR_VALIDATION;
-	}
+	@Inject ThumbnailGenerator thumbnailGenerator;
+
+	@Inject BlobStore blobStore;
+
+	private final ItemCountCache itemCounts = new ItemCountCache();
+
+	private final SummaryTables summaryTables = new SummaryTables();
+
+	/** Number of items loaded at once when streaming item lists. */
+	private static final int DUMP_BATCH_SIZE = 500;
+
+	private volatile long checksumsTotal = 0;
+	private final AtomicLong checksumsDone = new AtomicLong();
+	private final AtomicLong checksumsFailed = new AtomicLong();
+
+	/** How long a login() call waits for its token to be validated. */
+	private static final long LOGIN_TIMEOUT_MILLIS = 60_000;
+
+	/** Maps UserAuthToken ids to a future completed when they get validated or invalidated.
+	 * This map only contains ids which have a pending login() call. Entries are removed by whoever completes them.
+	 */
+	private final ConcurrentMap<Long, CompletableFuture<LoginState>> watchedTokens = new ConcurrentHashMap<>();
 
-	private final Semaphore heavyTask = new Semaphore(6, true);
+	/** Completes watchedTokens entries whose login() calls time out. */
+	private final ScheduledExecutorService loginTimeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "login-timeouts");
+		thread.setDaemon(true);
+		return thread;
+	});
 
     public static void main(String[] args) {
         boolean forward = false;
         boolean allowAnonymousUserCreation = false;
+        boolean migrateBlobs = false;
+        boolean rebuildSummaries = false;
         String configPath = null;
 
         for (String arg : args) {
@@ -122,6 +153,10 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
                 forward = true;
 			} else if (arg.equals("-allowAnonymousUserCreation")) {
 				allowAnonymousUserCreation = true;
+			} else if (arg.equals("-migrateBlobs")) {
+				migrateBlobs = true;
+			} else if (arg.equals("-rebuildSummaries")) {
+				rebuildSummaries = true;
             } else if (configPath == null) {
 				configPath = arg;
             } else {
@@ -136,6 +171,12 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
         try {
             if (forward) {
                 Guice.createInjector(new ForwarderModule(configPath)).getInstance(CloudSpillForwarder.class).run();
+            } else if (migrateBlobs) {
+                Guice.createInjector(new ServerModule(configPath)).getInstance(CloudSpillServer.class).migrateBlobs();
+                System.exit(0);
+            } else if (rebuildSummaries) {
+                Guice.createInjector(new ServerModule(configPath)).getInstance(CloudSpillServer.class).rebuildSummaries();
+                System.exit(0);
             } else {
                 Guice.createInjector(new ServerModule(configPath)).getInstance(CloudSpillServer.class).run(allowAnonymousUserCreation);
             }
@@ -146,50 +187,37 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
     }
 
     private static void exitWithUsage() {
-        Log.error("Usage: CloudSpillServer [-forward] configPath");
+        Log.error("Usage: CloudSpillServer [-forward|-migrateBlobs|-rebuildSummaries] configPath");
         System.exit(1);
     }
 
     public void run(boolean allowAnonymousUserCreation) {
     	File rootFolder = configuration.getRepositoryPath();
 
-    	/* Upgrade database before serving */
-    	Log.info("Upgrading database, please wait");
-    	try {
-    	transacted(session -> {
-			final ServerDomain.Query<Item> itemQuery = session.selectItem();
-			for (BackendItem item : itemQuery.add(root -> session.criteriaBuilder.isNull(
-					root.get(Item_.checksum))).list()) {
-    			File file = item.getFile(rootFolder);
-    			final MessageDigest md5 = getMessageDigest();
-				try (InputStream in = new FileInputStream(file)) {
-					
-				    byte[] buf = new byte[8192];
-				    while (true) {
-				      int len = in.read(buf);
-				      if (len == -1) {
-				        break;
-				      }
-				      md5.update(buf, 0, len);
-				    }
-				} catch (IOException e) {
-					Log.warn("Error reading "+ file +" for item "+ item.getServerId(), e);
-					continue;
-				}
-				item.setChecksum(
-						new String(Base64.getEncoder().encode(md5.digest()), StandardCharsets.ISO_8859_1));
-    		}
-    		return true;
-    	});
-    	} catch (Exception e) {
-    		e.printStackTrace();
-    		return;
-    	}
-    	Log.info("Database upgrade complete.");
-    	
-    	/* Thumbnail construction is memory intensive... */
-    	// TODO make this configurable
-    	//threadPool(6);
+		itemCounts.listenTo(sessionFactory);
+
+		try {
+			if (transacted(session -> summaryTables.createTables(session.getEntityManager()))) {
+				Log.info("Summary tables created, computing their contents");
+				rebuildSummaries();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("Failed creating summary tables", e);
+		}
+
+    	/* Items from before checksums were introduced get one in the background. Until then, they are served
+    	 * without validators or cached thumbnails, and cannot be accessed by key. */
+		final Thread checksums = new Thread(this::backfillChecksums, "checksum-backfill");
+		checksums.setDaemon(true);
+		checksums.start();
+
+    	/* Thumbnail construction is memory intensive, so it is done by a fixed number of workers */
+		thumbnailGenerator.start();
+		if (configuration.backfillThumbnails()) {
+			final Thread backfill = new Thread(this::backfillThumbnails, "thumbnail-backfill");
+			backfill.setDaemon(true);
+			backfill.start();
+		}
 
 		setupRoutes(configuration);
     	
@@ -202,6 +230,7 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 			u.setPass(BCrypt.hashpw(requireNotNull(req.queryParams(CloudSpillApi.CREATE_USER_PASS)), salt));
 
 			session.persist(u);
+			passwordCache.invalidate(u.getName());
 
 			return true;
 		};
@@ -210,8 +239,186 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 				allowAnonymousUserCreation ?
 						(req, res) -> transacted(session -> createUser.handle(req, res, session, /* user */null))
 						: secured(createUser));
+
+		/* Cache and queue statistics, for sizing */
+		get("/stats", secured((req, res, session, user) -> {
+			if (!user.user.hasGroup(User.ADMIN_GROUP)) {
+				return forbidden(res, false);
+			}
+			res.type("text/plain; charset=UTF-8");
+			return thumbnailCache.getStatistics() +"\n"+
+					thumbnailGenerator.getStatistics() +"\n"+
+					blobStore.getStatistics() +"\n"+
+					tokenCache.getStatistics() +"\n"+
+					passwordCache.getStatistics() +"\n"+
+					itemCounts.getStatistics() +"\n"+
+					getEntityCacheStatistics() +"\n"+
+					"Checksum backfill: "+ checksumsDone.get() +"/"+ checksumsTotal +" items, "+
+					checksumsFailed.get() +" failed\n";
+		}));
     }
 
+	/** Compute the checksum of all items that have none. Files are hashed in parallel, and checksums are saved in
+	 * batches so that an interrupted backfill resumes where it stopped. */
+	private void backfillChecksums() {
+		final File rootFolder = configuration.getRepositoryPath();
+		final int batchSize = configuration.getChecksumBatchSize();
+		final ForkJoinPool hashers = new ForkJoinPool(configuration.getChecksumThreads());
+		try {
+			checksumsTotal = transacted(session -> session.selectItem()
+					.add(root -> session.criteriaBuilder.isNull(root.get(Item_.checksum)))
+					.getTotalCount());
+			if (checksumsTotal == 0) {
+				return;
+			}
+			Log.info("Computing checksums of "+ checksumsTotal +" items");
+			long lastId = 0;
+			while (true) {
+				final long after = lastId;
+				final List<Item> batch = transacted(session -> session.selectItem()
+						.add(root -> session.criteriaBuilder.isNull(root.get(Item_.checksum)))
+						.add(root -> session.criteriaBuilder.gt(root.get(Item_.id), after))
+						.addOrder(CloudSpillEntityManagerDomain.Ordering.asc(Item_.id))
+						.range(QueryRange.limit(batchSize))
+						.list());
+				if (batch.isEmpty()) {
+					break;
+				}
+				/* Files which cannot be read are skipped (null checksum) until next startup */
+				final List<Future<String>> hashes = hashers.invokeAll(Lists.<Item, Callable<String>>transform(batch,
+						item -> () -> computeChecksum(item, item.getFile(rootFolder))));
+
+				final List<Item> updated = transacted(session -> {
+					final List<Item> result = new ArrayList<>();
+					for (int i = 0; i < batch.size(); i++) {
+						final String checksum = hashes.get(i).get();
+						final Item item = (checksum == null) ? null : session.get(Item.class, batch.get(i).getId());
+						if (item != null && item.getChecksum() == null) {
+							item.setChecksum(checksum);
+							summaryTables.checksumChanged(session.getEntityManager(), item);
+							result.add(item);
+						}
+					}
+					return result;
+				});
+				for (Item item : updated) {
+					thumbnailGenerator.offer(item, item.getFile(rootFolder));
+				}
+				lastId = batch.get(batch.size() - 1).getId();
+				Log.info("Checksum backfill: "+ checksumsDone.get() +"/"+ checksumsTotal +" items, "+
+						checksumsFailed.get() +" failed");
+			}
+			Log.info("Checksum backfill complete");
+		} catch (Exception e) {
+			Log.warn("Checksum backfill interrupted", e);
+		} finally {
+			hashers.shutdown();
+		}
+	}
+
+	/** Hash the given file, returning null if it cannot be read. */
+	private String computeChecksum(Item item, File file) {
+		final MessageDigest md5 = getMessageDigest();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[65536];
+			while (true) {
+				int len = in.read(buf);
+				if (len == -1) {
+					break;
+				}
+				md5.update(buf, 0, len);
+			}
+		} catch (IOException e) {
+			Log.warn("Error reading "+ file +" for item "+ item.getServerId(), e);
+			checksumsFailed.incrementAndGet();
+			return null;
+		}
+		checksumsDone.incrementAndGet();
+		return new String(Base64.getEncoder().encode(md5.digest()), StandardCharsets.ISO_8859_1);
+	}
+
+	/** Recompute the day and tag summaries from scratch, for instance after items were changed directly in the
+	 * database. */
+	public void rebuildSummaries() {
+		try {
+			transacted(session -> {
+				summaryTables.createTables(session.getEntityManager());
+				summaryTables.rebuild(session.getEntityManager());
+				return null;
+			});
+			Log.info("Summary tables rebuilt");
+		} catch (Exception e) {
+			Log.error("Failed rebuilding summary tables", e);
+		}
+	}
+
+	/** Move the files of all existing items into the blob store, deduplicating them, and report the space reclaimed.
+	 * Items without a checksum are skipped, so the server should have completed its checksum backfill first. */
+	public void migrateBlobs() {
+		final File rootFolder = configuration.getRepositoryPath();
+		if (!blobStore.isEnabled()) {
+			Log.warn("The blob store is not enabled in the configuration: new uploads will not be deduplicated");
+		}
+		long lastId = 0;
+		long files = 0;
+		long failed = 0;
+		long reclaimed = 0;
+		try {
+			while (true) {
+				final long after = lastId;
+				final List<Item> page = transacted(session -> session.selectItem()
+						.add(root -> session.criteriaBuilder.isNotNull(root.get(Item_.checksum)))
+						.add(root -> session.criteriaBuilder.gt(root.get(Item_.id), after))
+						.addOrder(CloudSpillEntityManagerDomain.Ordering.asc(Item_.id))
+						.range(QueryRange.limit(500))
+						.list());
+				if (page.isEmpty()) {
+					break;
+				}
+				for (Item item : page) {
+					try {
+						reclaimed += blobStore.add(item.getChecksum(), item.getFile(rootFolder));
+						files++;
+					} catch (IOException e) {
+						Log.warn("Failed moving item "+ item.getId() +" into the blob store", e);
+						failed++;
+					}
+				}
+				lastId = page.get(page.size() - 1).getId();
+				Log.info("Blob migration: "+ files +" files processed, "+ failed +" failed, "+ reclaimed +" bytes reclaimed");
+			}
+			Log.info(blobStore.getReport());
+		} catch (Exception e) {
+			Log.error("Blob migration interrupted", e);
+		}
+	}
+
+	/** Queue pre-generation of all missing standard thumbnails, one page of items at a time. */
+	private void backfillThumbnails() {
+		final File rootFolder = configuration.getRepositoryPath();
+		long lastId = 0;
+		try {
+			while (true) {
+				final long after = lastId;
+				final List<Item> page = transacted(session -> session.selectItem()
+						.add(root -> session.criteriaBuilder.gt(root.get(Item_.id), after))
+						.addOrder(CloudSpillEntityManagerDomain.Ordering.asc(Item_.id))
+						.range(QueryRange.limit(500))
+						.list());
+				if (page.isEmpty()) {
+					break;
+				}
+				for (Item item : page) {
+					thumbnailGenerator.put(item, item.getFile(rootFolder));
+				}
+				lastId = page.get(page.size() - 1).getId();
+			}
+			Log.info("Thumbnail backfill scan complete");
+		} catch (Exception e) {
+			Log.warn("Thumbnail backfill scan interrupted", e);
+		}
+	}
+
 	@Override
 	protected OrHttpError<Item> loadItem(ServerDomain session, long id, List<ItemCredentials> credentials) {
 		Item item = session.get(Item.class, id);
@@ -231,7 +438,7 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 	@Override
 	protected OrHttpError<Long> upload(ServerDomain session, ItemCredentials.UserCredentials credentials, InputStream inputStream, String folder, String path,
-						  ItemMetadata metadata) throws IOException {
+						  ItemMetadata metadata, String expectedChecksum) throws IOException {
 		// Normalise given path
 		File folderPath = append(append(configuration.getRepositoryPath(), credentials.user.getName()), folder);
 		File requestedTarget = append(folderPath, path);
@@ -247,7 +454,8 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 		}
 		String finalNormalisedPath = normalisedPath;
 
-		/* First see if the path already exists. */
+		/* First see if the path already exists. This is a unique index lookup (see SchemaMigrations), and the same
+		 * index makes a concurrent upload of the same path fail on commit rather than create a duplicate. */
 		final ServerDomain.Query<Item> itemQuery = session.selectItem();
 		List<Item> existing = itemQuery
 				.add(root -> session.criteriaBuilder.equal(root.get(Item_.user), credentials.user.getName()))
@@ -261,19 +469,31 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 				item.setFolder(folder);
 				item.setPath(normalisedPath);
 				item.setUser(credentials.user.getName());
+				item.setTags(new HashSet<>());
+				item.setVisibility(Visibility.of(item.getTags()));
 
 				requestedTarget.getParentFile().mkdirs();
 				// TODO return 40x error in case content-length is missing or invalid
 				/*long contentLength = Long.parseLong(req.headers("Content-Length")); */
+				/* The file is read only once: while writing it we compute its checksum and keep its first bytes,
+				 * which hold the information needed to fill missing metadata. */
 				final MessageDigest md5 = getMessageDigest();
-				Log.debug("Writing bytes to " + requestedTarget);
+				final ByteArrayOutputStream header = new ByteArrayOutputStream();
+				/* If the contents are already stored, just read (and check) them without writing anything */
+				final boolean known = blobStore.isEnabled() && expectedChecksum != null && blobStore.contains(expectedChecksum);
+				Log.debug(known ? "Contents of "+ requestedTarget +" already stored" : "Writing bytes to " + requestedTarget);
+				if (!known) {
+					/* A file left over by an earlier, rolled back attempt may be a link to a blob, which must not be
+					 * overwritten in place (see BlobStore) */
+					Files.deleteIfExists(requestedTarget.toPath());
+				}
 				try (BufferedInputStream in = new BufferedInputStream(inputStream);
-					 FileOutputStream out = new FileOutputStream(requestedTarget)) {
+					 OutputStream out = known ? ByteStreams.nullOutputStream() : new FileOutputStream(requestedTarget)) {
 
 					//session.persist(item);
 					// TODO checksum update below fails if we do this: session.flush(); // flush before writing to disk
 
-					byte[] buf = new byte[8192];
+					byte[] buf = new byte[65536];
 					long copied = 0;
 					while (true) {
 						int len = in.read(buf);
@@ -281,6 +501,9 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 							break;
 						}
 						md5.update(buf, 0, len);
+						if (header.size() < MetadataExtractor.HEADER_LENGTH) {
+							header.write(buf, 0, Math.min(len, MetadataExtractor.HEADER_LENGTH - header.size()));
+						}
 						out.write(buf, 0, len);
 						copied += len;
 					}
@@ -292,10 +515,24 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 				}
 
 
+				final String checksum = new String(Base64.getEncoder().encode(md5.digest()), StandardCharsets.ISO_8859_1);
+				if (known) {
+					if (!checksum.equals(expectedChecksum)) {
+						Log.warn("Upload of "+ requestedTarget +" announced checksum "+ expectedChecksum +" but has "+ checksum);
+						return badRequest();
+					}
+					blobStore.link(checksum, requestedTarget);
+				} else if (blobStore.isEnabled()) {
+					blobStore.add(checksum, requestedTarget);
+				}
+
 				if (metadata.itemDate == null || metadata.itemType == null) {
-					final ItemMetadata inferredMetadata = MetadataExtractor.getItemMetadata(null, requestedTarget);
 					// client-provided metadata has higher priority
-					metadata = inferredMetadata.overrideWith(metadata);
+					metadata = MetadataExtractor.getHeaderMetadata(header.toByteArray(), requestedTarget).overrideWith(metadata);
+				}
+				if (metadata.itemDate == null || metadata.itemType == null) {
+					// Not a JPEG file: read the whole file (video metadata may be at the end)
+					metadata = MetadataExtractor.getItemMetadata(null, requestedTarget).overrideWith(metadata);
 				}
 
 				if (metadata.itemDate != null) {
@@ -306,10 +543,11 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 					item.setType(metadata.itemType);
 				}
 
-				item.setChecksum(
-						new String(Base64.getEncoder().encode(md5.digest()), StandardCharsets.ISO_8859_1));
+				item.setChecksum(checksum);
 
 				session.persist(item);
+				summaryTables.itemAdded(session.getEntityManager(), item);
+				thumbnailGenerator.offer(item, requestedTarget);
 
 				Log.debug("Returning id "+ item.getId());
 				return new OrHttpError<>(item.getId());
@@ -374,39 +612,43 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 	}
 
 	@Override
-	protected OrHttpError<LoginState> login(ItemCredentials.UserToken credentials) {
-		return transactedOrError(session -> {
+	protected CompletableFuture<OrHttpError<LoginState>> login(ItemCredentials.UserToken credentials) {
+		final CompletableFuture<LoginState> watch = watchedTokens.computeIfAbsent(credentials.id, id -> {
+			final CompletableFuture<LoginState> created = new CompletableFuture<>();
+			/* "Long-polling": wait at most one minute. Later login() calls for the same token share this deadline. */
+			loginTimeouts.schedule(() -> {
+				if (watchedTokens.remove(id, created)) {
+					created.complete(LoginState.WAITING_FOR_VALIDATION);
+				}
+			}, LOGIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			return created;
+		});
+
+		/* Check the token after registering the watch, so that a concurrent validation cannot be missed */
+		final OrHttpError<LoginState> current = transactedOrError(session -> {
 			final UserAuthToken token = session.get(UserAuthToken.class, credentials.id);
 			if (token == null ||
 					!token.getValue().equals(credentials.secret) ||
 					!token.getUser().getName().equals(credentials.user.getName())) {
 				throw new InvalidPasswordException("Incorrect secret for token #"+ credentials.id);
 			}
-			if (token.getValid()) {
-				return LoginState.LOGGED_IN;
+			return token.getValid() ? LoginState.LOGGED_IN : LoginState.WAITING_FOR_VALIDATION;
+		});
+		if (!current.hasValue() || current.orThrow() != LoginState.WAITING_FOR_VALIDATION) {
+			if (current.hasValue()) {
+				notifyTokenWatch(credentials.id, current.orThrow());
 			}
-			synchronized (watchedTokens) {
-				TokenWatch watch = watchedTokens.compute(token.getId(), (__, w) -> {
-					if (w == null) {
-						w = new TokenWatch();
-					}
-					w.watchCount++;
-					return w;
-				});
-				/* "Long-polling": wait at most one minute */
-				final long deadline = System.currentTimeMillis() + 60_000;
-				while (System.currentTimeMillis() < deadline && watch.state == LoginState.WAITING_FOR_VALIDATION) {
-					//  max() needed in case the deadline expires right after above condition check
-					watchedTokens.wait(Math.max(1, deadline - System.currentTimeMillis()));
-				}
-				watch.watchCount --;
+			return CompletableFuture.completedFuture(current);
+		}
+		return watch.thenApply(OrHttpError::new);
+	}
 
-				if (watch.watchCount == 0) {
-					watchedTokens.remove(token.getId());
-				}
-				return watch.state;
-			}
-		});
+	/** Complete any pending login() calls for the given token. */
+	private void notifyTokenWatch(long tokenId, LoginState state) {
+		final CompletableFuture<LoginState> watch = watchedTokens.remove(tokenId);
+		if (watch != null) {
+			watch.complete(state);
+		}
 	}
 
     @Override
@@ -418,14 +660,9 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
         session.remove(token);
         session.flush(); // to acquire lock (would be better to do a for update earlier)
-        synchronized(watchedTokens) {
-            /* If anybody's waiting for this to be validated, let them deny access. */
-            final TokenWatch tokenWatch = watchedTokens.get(credentials.id);
-            if (tokenWatch != null) {
-                tokenWatch.state = LoginState.INVALID_TOKEN;
-                watchedTokens.notifyAll();
-            }
-        }
+        tokenCache.revoke(credentials.id);
+        /* If anybody's waiting for this to be validated, let them deny access. */
+        session.afterCommit(() -> notifyTokenWatch(credentials.id, LoginState.INVALID_TOKEN));
         return new OrHttpError<>( "ok");
     }
 
@@ -438,14 +675,9 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 		token.setValid(true);
 		session.flush(); // to acquire lock (would be better to do a for update earlier)
-		synchronized(watchedTokens) {
-			/* If anybody's waiting for this to be validated, let them grant access. */
-			final TokenWatch tokenWatch = watchedTokens.get(tokenId);
-			if (tokenWatch != null) {
-				tokenWatch.state = LoginState.LOGGED_IN;
-				watchedTokens.notifyAll();
-			}
-		}
+		tokenCache.invalidate(tokenId);
+		/* If anybody's waiting for this to be validated, let them grant access (once the validation is visible). */
+		session.afterCommit(() -> notifyTokenWatch(tokenId, LoginState.LOGGED_IN));
 		return new OrHttpError<>( "ok");
 	}
 
@@ -458,14 +690,9 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 		session.remove(token);
 		session.flush(); // to acquire lock (would be better to do a for update earlier)
-		synchronized(watchedTokens) {
-			/* If anybody's waiting for this to be validated, let them fail immediately. */
-			final TokenWatch tokenWatch = watchedTokens.get(tokenId);
-			if (tokenWatch != null) {
-				tokenWatch.state = LoginState.INVALID_TOKEN;
-				watchedTokens.notifyAll();
-			}
-		}
+		tokenCache.revoke(tokenId);
+		/* If anybody's waiting for this to be validated, let them fail immediately. */
+		session.afterCommit(() -> notifyTokenWatch(tokenId, LoginState.INVALID_TOKEN));
 		return new OrHttpError<>( "ok");
 	}
 
@@ -499,43 +726,82 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 	@Override
 	protected ItemQueryLoader getQueryLoader(ServerDomain session, ItemCredentials credentials) {
-		return criteria -> {
-			final Item relativeTo;
-            if (criteria.getRelativeTo() == null) {
-                relativeTo = null;
-            } else {
-                relativeTo = session.get(Item.class, criteria.getRelativeTo());
-                if (relativeTo == null) {
-                    return badRequest();
-                }
-                try {
-                    verifyCredentials(criteria.getItemCredentials(), relativeTo);
-                } catch (AccessDeniedException e) {
-                    return forbidden(false);
-                }
-            }
+		return new ItemQueryLoader() {
+			@Override
+			public OrHttpError<ItemSet> load(Java8SearchCriteria<BackendItem> criteria) {
+				final Item relativeTo;
+				// A cursor is more precise than relativeTo, which is then only kept for links back to the item
+				if (criteria.getRelativeTo() == null || criteria.getRange().hasCursor()) {
+					relativeTo = null;
+				} else {
+					relativeTo = session.get(Item.class, criteria.getRelativeTo());
+					if (relativeTo == null) {
+						return badRequest();
+					}
+					try {
+						verifyCredentials(criteria.getItemCredentials(), relativeTo);
+					} catch (AccessDeniedException e) {
+						return forbidden(false);
+					}
+				}
 
-            if (relativeTo != null) {
-                criteria = criteria.withRange(
-                        criteria.getRange().shift(
-                        criteriaToQuery(session, credentials, criteria)
-                        .indexOf(relativeTo))
-                .truncate());
-            }
+				final CloudSpillEntityManagerDomain.Query<Item> query = criteriaToQuery(session, credentials, criteria);
 
-            final CloudSpillEntityManagerDomain.Query<Item> query = criteriaToQuery(session, credentials, criteria);
+				final List<Item> rows;
+				try {
+					rows = (relativeTo == null) ?
+							query.range(criteria.getRange()).list() :
+							query.around(relativeTo, criteria.getRange());
+				} catch (IllegalArgumentException e) {
+					// malformed cursor
+					return badRequest();
+				}
 
-			return new OrHttpError<>(new ItemSet(
-					query.getTotalCount(),
-					query.range(criteria.getRange()).list(),
-					criteria.buildTitle(),
-					criteria.getDescription()));
+				return new OrHttpError<>(new ItemSet(
+						itemCounts.get(criteria.getCountKey(credentials), query::getTotalCount),
+						rows,
+						criteria.buildTitle(),
+						criteria.getDescription(),
+						rows.isEmpty() ? null : query.cursorOf(rows.get(0)),
+						rows.isEmpty() ? null : query.cursorOf(rows.get(rows.size() - 1))));
+			}
+
+			@Override
+			public OrHttpError<ItemSet> stream(Java8SearchCriteria<BackendItem> criteria,
+											   CloudSpillEntityManagerDomain.BatchConsumer<BackendItem> consumer) throws IOException {
+				final QueryRange range = criteria.getRange();
+				if (criteria.getRelativeTo() != null || range.before != null) {
+					return ItemQueryLoader.super.stream(criteria, consumer);
+				}
+				final CloudSpillEntityManagerDomain.Query<Item> query = criteriaToQuery(session, credentials, criteria);
+				final long[] rowCount = new long[]{0};
+				final String[] cursors = new String[2];
+				try {
+					query.range(range).forEachBatch(DUMP_BATCH_SIZE, batch -> {
+						if (cursors[0] == null) {
+							cursors[0] = query.cursorOf(batch.get(0));
+						}
+						cursors[1] = query.cursorOf(batch.get(batch.size() - 1));
+						rowCount[0] += batch.size();
+						consumer.accept(batch);
+					});
+				} catch (IllegalArgumentException e) {
+					// malformed cursor, detected before loading the first batch
+					return badRequest();
+				}
+				// When streaming everything, counting rows is enough
+				final long total = (range.offset == 0 && range.limit == null && range.after == null) ?
+						rowCount[0] :
+						itemCounts.get(criteria.getCountKey(credentials), query::getTotalCount);
+				return new OrHttpError<>(new ItemSet(total, ImmutableList.of(),
+						criteria.buildTitle(), criteria.getDescription(), cursors[0], cursors[1]));
+			}
 		};
 	}
 
     private CloudSpillEntityManagerDomain.Query<Item> criteriaToQuery(ServerDomain session, ItemCredentials credentials, Java8SearchCriteria<BackendItem> criteria) {
-        final CloudSpillEntityManagerDomain.Query<Item> query = criteria.applyTo(session.selectItem(), credentials);
-        // relativeTo calculation requires fully defined ordering, so we order by id after all other orderings
+        final CloudSpillEntityManagerDomain.Query<Item> query = criteria.applyTo(session.selectItemList(), credentials);
+        // relativeTo and cursors require fully defined ordering, so we order by id after all other orderings
         query.addOrder(CloudSpillEntityManagerDomain.Ordering.asc(Item_.id));
         return query;
     }
@@ -547,15 +813,50 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 	@Override
 	protected OrHttpError<GalleryListPage.Model> galleryList(ItemCredentials credentials, ServerDomain domain) {
-		final CloudSpillEntityManagerDomain.Query<GalleryPart> query = domain.selectGalleryPart();
-		return new OrHttpError<>(new GalleryListPage.Model(credentials, configuration.getRepositoryName(), Lists.transform(
-				query.addOrder(CloudSpillEntityManagerDomain.Ordering.desc(GalleryPart_.from)).list(),
-				gp -> {
-					final List<Item> sample = gp.applyTo(domain.selectItem(), credentials)
-                            .range(QueryRange.limit(1)).list();
-					return sample.isEmpty() ? new GalleryListPage.Element(gp, null, null) :
-							new GalleryListPage.Element(gp, sample.get(0).getId(), sample.get(0).getChecksum());
-				})));
+		final List<GalleryPart> parts = domain.selectGalleryPart()
+				.addOrder(CloudSpillEntityManagerDomain.Ordering.desc(GalleryPart_.from))
+				.cacheable()
+				.list();
+
+		/* Sample of each part, in a single query: its first item, with the same criteria as GalleryPart.applyTo().
+		 * (Keyless parts only show public items, and general security only matters for others.) */
+		final String itemTags = "(select it.tags from Item_tags it where it.Item_id = i.id)";
+		final String security;
+		final String isPublic = "i.visibility = "+ Visibility.PUBLIC.ordinal();
+		if (credentials.hasGroup(User.ADMIN_GROUP)) {
+			security = "";
+		} else if (credentials instanceof ItemCredentials.UserCredentials) {
+			security = " and (i.visibility >= "+ Visibility.USERS.ordinal() +" or i.user = ?)";
+		} else {
+			security = " and "+ isPublic;
+		}
+		final Query query = domain.getEntityManager().createNativeQuery(
+				"select q.part, i.id, i.checksum from " +
+						"(select g.id part, (select i.id from Item i where " +
+						"(g.`from` is null or i.date >= g.`from`) and " +
+						"(g.`to` is null or i.date <= g.`to` + interval 1 day) and " +
+						"not exists (select 1 from GalleryPart_tags gt where gt.GalleryPart_id = g.id and gt.tags not in "+ itemTags +") and " +
+						"((g.`key` is not null and g.`key` <> '') or "+ isPublic +")" +
+						security +
+						" order by i.date, i.id limit 1) sample from GalleryPart g) q " +
+						"left join Item i on i.id = q.sample");
+		if (credentials instanceof ItemCredentials.UserCredentials && !credentials.hasGroup(User.ADMIN_GROUP)) {
+			query.setParameter(1, ((ItemCredentials.UserCredentials)credentials).user.getName());
+		}
+		final Map<Long, Object[]> samples = new HashMap<>();
+		@SuppressWarnings("unchecked") // native queries selecting several columns return Object[] rows
+		final List<Object[]> rows = query.getResultList();
+		for (Object[] row : rows) {
+			samples.put(((Number) row[0]).longValue(), row);
+		}
+
+		final List<GalleryListPage.Element> elements = new ArrayList<>();
+		for (GalleryPart gp : parts) {
+			final Object[] sample = samples.get(gp.getId());
+			elements.add((sample == null || sample[1] == null) ? new GalleryListPage.Element(gp, null, null) :
+					new GalleryListPage.Element(gp, ((Number) sample[1]).longValue(), (String) sample[2]));
+		}
+		return new OrHttpError<>(new GalleryListPage.Model(credentials, configuration.getRepositoryName(), elements));
 	}
 
 	@Override
@@ -565,56 +866,49 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 
 	@Override
 	protected OrHttpError<GalleryListPage.Model> dayList(ItemCredentials credentials, ServerDomain domain, int year) {
-		final boolean isAdmin = credentials.hasGroup(User.ADMIN_GROUP);
-		final Query query = domain.getEntityManager().createNativeQuery(
-				"select id, date(date) as date, checksum from Item " +
-						"where id in (select max(id) from Item where date >= ? and date < ? "+
-						(isAdmin ? "" :
-								" and ('public' in (select it.tags from Item_tags it where Item.id=it.Item_id) or Item.user=?)")
-						+" group by date(date)) " +
-						"order by date");
-		query.setParameter(1, LocalDate.ofYearDay(year, 1));
-		query.setParameter(2, LocalDate.ofYearDay(year+1, 1));
-		if (!isAdmin) {
-			query.setParameter(3, ((ItemCredentials.UserCredentials)credentials).user.getName());
-		}
-		return new OrHttpError<>(new GalleryListPage.Model(credentials, "Year "+ year, Lists.transform((List<Object[]>)query.getResultList(), row -> {
-			long id = ((Number) row[0]).longValue();
-			LocalDate date = ((java.sql.Date) row[1]).toLocalDate();
-			String checksum = (String) row[2];
-			return new GalleryListPage.Element(ServerSearchCriteria.ALL.at(date), id, checksum);
-		})));
+		return new OrHttpError<>(new GalleryListPage.Model(credentials, "Year "+ year, Lists.newArrayList(Lists.transform(
+				summaryTables.getDays(domain.getEntityManager(), year, SummaryTables.visibleScopes(credentials)),
+				day -> new GalleryListPage.Element(ServerSearchCriteria.ALL.at(LocalDate.parse(day.key)), day.cover, day.coverChecksum)))));
 	}
 
 	@Override
 	protected OrHttpError<GalleryListPage.Model> tagGalleryList(ItemCredentials credentials, ServerDomain domain) {
-		final boolean isAdmin = credentials.hasGroup(User.ADMIN_GROUP);
-		final Query query = domain.getEntityManager().createNativeQuery(
-				"select i, tags, checksum from " +
-						"(select first.tags, max(id) i from Item_tags first, Item where first.Item_id = Item.id" +
-						(isAdmin ? "" :
-						" and ('public' in (select it.tags from Item_tags it where Item.id=it.Item_id) or Item.user=?)") +" group by first.tags) q, Item " +
-								"where Item.id = i");
-		if (!isAdmin) {
-			query.setParameter(1, ((ItemCredentials.UserCredentials)credentials).user.getName());
+		return new OrHttpError<>(new GalleryListPage.Model(credentials, "All Tags", Lists.newArrayList(Lists.transform(
+				summaryTables.getTags(domain.getEntityManager(), SummaryTables.visibleScopes(credentials)),
+				tag -> new GalleryListPage.Element(ServerSearchCriteria.ALL.withTag(tag.key), tag.cover, tag.coverChecksum)))));
+	}
+
+	@Override
+	protected List<String> tagList(ServerDomain domain) {
+		return summaryTables.getTagNames(domain.getEntityManager());
+	}
+
+	@Override
+	protected OrHttpError<Boolean> putTags(ServerDomain session, MassTagging dto, ItemCredentials credentials) throws IOException {
+		/* The bulk statements skip unknown ids: check them first, so that nothing is changed if some are wrong */
+		final Set<Long> missing = BulkTagging.missing(session.getEntityManager(), dto.ids);
+		if (!missing.isEmpty()) {
+			Log.error("Cannot tag missing items "+ missing);
+			return notFound(missing.iterator().next());
 		}
-		return new OrHttpError<>(new GalleryListPage.Model(credentials, "All Tags", Lists.transform((List<Object[]>)query.getResultList(), row -> {
-			long id = ((Number) row[0]).longValue();
-			String tag = (String) row[1];
-			String checksum = (String) row[2];
-			return new GalleryListPage.Element(ServerSearchCriteria.ALL.withTag(tag), id, checksum);
-		})));
+		return super.putTags(session, dto, credentials);
+	}
+
+	@Override
+	protected void onTagsChanged(ServerDomain session, List<Long> ids, BulkTagging tagging) {
+		summaryTables.tagsChanged(session.getEntityManager(), ids, tagging);
+		/* Tags are changed without going through entities, so the listener is not notified. Invalidating before the
+		 * commit would let a concurrent request cache the old counts again. */
+		session.afterCommit(itemCounts::invalidate);
 	}
 
 	@Override
-	protected void download(Response res, ServerDomain session, ItemCredentials credentials, final BackendItem item)
+	protected void download(Request req, Response res, ServerDomain session, ItemCredentials credentials, final BackendItem item)
 			throws IOException {
 		File file = item.getFile(configuration.getRepositoryPath());
 		res.header("Content-Type", item.getType().asMime());
-		res.header("Content-Length", String.valueOf(file.length()));
-		try (FileInputStream stream = new FileInputStream(file)) {
-			ByteStreams.copy(stream, res.raw().getOutputStream());
-		}
+		FileSender.send(file, (item.getChecksum() == null) ? null : CacheValidation.entityTag(item.getChecksum()),
+				req.raw(), res.raw());
 	}
 
 	@Override
@@ -627,105 +921,22 @@ public class CloudSpillServer extends CloudSpillBackend<ServerDomain> {
 		}
 		
 		res.header("Content-Type", "image/jpeg");
-		heavyTask.acquire();
-		try {
-		BufferedImage renderedImage = 
-		 (item.getType() == ItemType.IMAGE) ?        		
-		createImageThumbnail(file, size) :
-			createVideoThumbnail(file, size);
-		ImageIO.write(renderedImage, "jpeg", res.raw().getOutputStream());
-		} finally {
-			heavyTask.release();
-		}
-		return "";
-	}
-
-    private BufferedImage createVideoThumbnail(File file, int size) throws IOException {
-    	try (FFmpegFrameGrabber g = new FFmpegFrameGrabber(file)) {
-			g.start();
-		
-			final BufferedImage frame = new Java2DFrameConverter().convert(g.grabImage());
 
-			return resize(frame.getWidth(), frame.getHeight(), size, 1, (scaledWidth, scaledHeight) -> 
-				frame.getScaledInstance(scaledWidth, scaledHeight, Image.SCALE_DEFAULT));
-			
-    	} catch (FrameGrabber.Exception e) {
-    		throw new RuntimeException(e);
-		}
-    }
-
-	private BufferedImage createImageThumbnail(File file, int size) throws IOException {
-		// load an image
-		Image image = ImageIO.read(file);
-		
-		final ImageObserver imageObserver = (Image img, int infoflags, int x, int y, int newWidth, int height) ->
-			((infoflags | ImageObserver.ALLBITS) == ImageObserver.ALLBITS);
-
-		return resize(image.getWidth(imageObserver), image.getHeight(imageObserver), size, ImageOrientationUtil.getExifRotation(file), (scaledWidth, scaledHeight) ->
-			 image.getScaledInstance(scaledWidth, scaledHeight, Image.SCALE_SMOOTH));
-	}
-	
-	private BufferedImage resize(int width, int height, int targetSize, int orientation, BiFunction<Integer, Integer, Image> resizeFunction) {
-
-		int min = Math.min(width, height);
-		
-		// Not clear if this happens in real life?
-		if (min < 0) { throw new IllegalStateException("Asynchronous image io is not supported"); }
-		
-		// Have the *smallest* dimension of the image be the requested 'size'
-		final int scaledWidth = width * targetSize / min;
-		final int scaledHeight = height * targetSize / min;
-		Image scaledImage = resizeFunction.apply(scaledWidth, scaledHeight);
-		
-		// Convert abstract Image into RenderedImage.
-		BufferedImage renderedImage = new BufferedImage(targetSize, targetSize, BufferedImage.TYPE_3BYTE_BGR);
-		boolean[] ready = new boolean[] { false };
-		final Graphics2D graphics = renderedImage.createGraphics();
-		if (orientation == 6) {
-			final AffineTransform transform = graphics.getTransform();
-			transform.translate(targetSize, 0);
-			transform.rotate(Math.toRadians(90));
-			graphics.setTransform(transform);
-		} else if (orientation == 3) {
-			final AffineTransform transform = graphics.getTransform();
-			transform.translate(targetSize, targetSize);
-			transform.rotate(Math.toRadians(180));
-			graphics.setTransform(transform);
-		} else if (orientation == 8) {
-			final AffineTransform transform = graphics.getTransform();
-			transform.translate(0, targetSize);
-			transform.rotate(Math.toRadians(270));
-			graphics.setTransform(transform);
-		}
-		ready[0] = graphics.drawImage(scaledImage,
-				/*
-				 * Center 'image' on 'renderedImage' (which may be smaller
-				 * if 'image' is not square)
-				 */
-				(targetSize - scaledWidth) / 2, (targetSize - scaledHeight) / 2,
-				(these, infoflags, parameters, are, not, needed) -> {
-					if ((infoflags | ImageObserver.ALLBITS) == ImageObserver.ALLBITS) {
-						synchronized (ready) {
-							ready[0] = true;
-							ready.notify();
-						}
-						return false;
-					} else {
-						return true; // need more data
-					}
-				});
-
-		synchronized (ready) {
-			try {
-				while (!ready[0]) {
-					ready.wait();
+		final String checksum = item.getChecksum();
+		if (checksum != null) {
+			try (FileChannel cached = thumbnailCache.get(checksum, size)) {
+				if (cached != null) {
+					FileSender.send(cached, res.raw());
+					return "";
 				}
-			} catch (InterruptedException e) {
 			}
 		}
-		return renderedImage;
+
+		final byte[] jpeg = thumbnailGenerator.render(item, file, size);
+		res.header("Content-Length", String.valueOf(jpeg.length));
+		res.raw().getOutputStream().write(jpeg);
+		return "";
 	}
-	
 
 	@Override
 	protected ServerDomain createDomain(EntityManager e) {
@@ -0,0 +1,230 @@
+package org.gamboni.cloudspill.server;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Sends files (originals and thumbnails) to HTTP clients.
+ * <p>
+ * When running in Jetty, files are memory-mapped and handed over to the connector in large chunks, so file contents
+ * go from the page cache to the socket without being copied through a heap buffer. Other containers get a plain
+ * channel transfer.
+ * </p><p>
+ * Originals are sent with byte range support (RFC 7233) so that clients can seek in videos and resume interrupted
+ * downloads.
+ * </p>
+ *
+ * @author tendays
+ */
+public abstract class FileSender {
+    /** Largest portion of a file mapped at once. Mappings are only released when garbage collected, so this bounds the
+     * address space used per download rather than the memory. */
+    private static final long MAPPED_CHUNK = 16 * 1024 * 1024;
+
+    /** Requests with more ranges than this get the whole file instead. */
+    private static final int MAX_RANGES = 16;
+
+    /** Send the whole file, with its Content-Length. The Content-Type must already be set. */
+    public static void send(File file, HttpServletResponse res) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            send(channel, res);
+        }
+    }
+
+    /** Send the whole contents of the given channel, with its Content-Length. The Content-Type must already be set.
+     * The channel is not closed. */
+    public static void send(FileChannel channel, HttpServletResponse res) throws IOException {
+        final long length = channel.size();
+        res.setHeader("Content-Length", String.valueOf(length));
+        transfer(channel, 0, length, res.getOutputStream());
+    }
+
+    /** Send the file, or the portions of it listed in the request's Range header. The Content-Type must already
+     * be set.
+     *
+     * @param etag entity tag of the file, as returned by {@link CacheValidation#entityTag}, or null if unknown
+     */
+    public static void send(File file, String etag, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            // HTTP dates have a one-second resolution
+            final long lastModified = file.lastModified() / 1000 * 1000;
+            res.setHeader("Accept-Ranges", "bytes");
+            res.setDateHeader("Last-Modified", lastModified);
+
+            final List<ByteRange> ranges = isRangeApplicable(req, etag, lastModified) ?
+                    ByteRange.parse(req.getHeader("Range"), length) :
+                    null;
+
+            if (ranges == null) {
+                res.setHeader("Content-Length", String.valueOf(length));
+                transfer(channel, 0, length, res.getOutputStream());
+            } else if (ranges.isEmpty()) {
+                res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader("Content-Range", "bytes */"+ length);
+                res.setHeader("Content-Length", "0");
+            } else if (ranges.size() == 1) {
+                final ByteRange range = ranges.get(0);
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", range.contentRange(length));
+                res.setHeader("Content-Length", String.valueOf(range.length()));
+                transfer(channel, range.first, range.length(), res.getOutputStream());
+            } else {
+                sendMultipart(channel, length, ranges, res);
+            }
+        }
+    }
+
+    /** A Range request must be ignored if it has an If-Range header that does not match the current file. */
+    private static boolean isRangeApplicable(HttpServletRequest req, String etag, long lastModified) {
+        if (req.getHeader("Range") == null) {
+            return false;
+        }
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("W/")) {
+            // If-Range requires strong comparison
+            return false;
+        } else if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return req.getDateHeader("If-Range") == lastModified;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void sendMultipart(FileChannel channel, long length, List<ByteRange> ranges, HttpServletResponse res) throws IOException {
+        final String boundary = UUID.randomUUID().toString();
+        final String contentType = res.getContentType();
+
+        final List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            final byte[] header = ("\r\n--"+ boundary +"\r\n"+
+                    (contentType == null ? "" : "Content-Type: "+ contentType +"\r\n") +
+                    "Content-Range: "+ range.contentRange(length) +"\r\n"+
+                    "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            partHeaders.add(header);
+            contentLength += header.length + range.length();
+        }
+        final byte[] trailer = ("\r\n--"+ boundary +"--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += trailer.length;
+
+        res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        res.setContentType("multipart/byteranges; boundary="+ boundary);
+        res.setHeader("Content-Length", String.valueOf(contentLength));
+
+        final OutputStream out = res.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(partHeaders.get(i));
+            transfer(channel, ranges.get(i).first, ranges.get(i).length(), out);
+        }
+        out.write(trailer);
+    }
+
+    /** Copy {@code count} bytes of the given file, starting at {@code position}, to the given output stream. */
+    public static void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        final long end = position + count;
+        if (out instanceof HttpOutput) {
+            final HttpOutput httpOutput = (HttpOutput) out;
+            for (long offset = position; offset < end; offset += MAPPED_CHUNK) {
+                httpOutput.write(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAPPED_CHUNK, end - offset)));
+            }
+        } else {
+            final WritableByteChannel target = Channels.newChannel(out);
+            long offset = position;
+            while (offset < end) {
+                final long sent = channel.transferTo(offset, end - offset, target);
+                if (sent <= 0) {
+                    throw new IOException("File truncated while sending it");
+                }
+                offset += sent;
+            }
+        }
+    }
+
+    /** An inclusive range of byte positions in a file. */
+    private static class ByteRange {
+        final long first;
+        final long last;
+
+        ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long length() {
+            return last - first + 1;
+        }
+
+        String contentRange(long length) {
+            return "bytes "+ first +"-"+ last +"/"+ length;
+        }
+
+        /** Parse a Range header against a file of the given length.
+         *
+         * @return the satisfiable ranges (an empty list if there are none), or null if the header should be ignored
+         * because it is malformed or asks for too many ranges.
+         */
+        static List<ByteRange> parse(String header, long length) {
+            final String prefix = "bytes=";
+            if (!header.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return null;
+            }
+            final String[] specs = header.substring(prefix.length()).split(",");
+            if (specs.length > MAX_RANGES) {
+                return null;
+            }
+            final List<ByteRange> result = new ArrayList<>();
+            try {
+                for (String spec : specs) {
+                    spec = spec.trim();
+                    final int dash = spec.indexOf('-');
+                    if (dash == -1) {
+                        return null;
+                    }
+                    final String first = spec.substring(0, dash).trim();
+                    final String last = spec.substring(dash + 1).trim();
+                    if (first.isEmpty()) {
+                        // Suffix range: the last n bytes
+                        final long suffix = Long.parseLong(last);
+                        if (suffix > 0 && length > 0) {
+                            result.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                        }
+                    } else {
+                        final long start = Long.parseLong(first);
+                        final long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                        if (start < 0 || end < start) {
+                            return null;
+                        }
+                        if (start < length) {
+                            result.add(new ByteRange(start, Math.min(end, length - 1)));
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                Log.debug("Ignoring malformed Range header "+ header);
+                return null;
+            }
+            return result;
+        }
+    }
+}
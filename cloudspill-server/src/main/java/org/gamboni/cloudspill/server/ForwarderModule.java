@@ -9,6 +9,7 @@ import org.gamboni.cloudspill.domain.RemoteItem;
 import org.gamboni.cloudspill.domain.RemoteUserAuthToken;
 import org.gamboni.cloudspill.domain.User;
 import org.gamboni.cloudspill.domain.UserAuthToken;
+import org.gamboni.cloudspill.server.config.BackendConfiguration;
 import org.gamboni.cloudspill.server.config.ForwarderConfiguration;
 import org.gamboni.cloudspill.server.config.ServerConfiguration;
 import org.gamboni.cloudspill.shared.domain.Comment;
@@ -30,6 +31,11 @@ public class ForwarderModule extends BackendModule {
         return new ForwarderConfiguration(configPath);
     }
 
+    @Provides
+    public BackendConfiguration backendConfiguration(ForwarderConfiguration configuration) {
+        return configuration;
+    }
+
     @Override
     protected Class<? extends AbstractServer> getServerClass() {
         return CloudSpillForwarder.class;
@@ -0,0 +1,158 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.gamboni.cloudspill.domain.BackendItem;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.persistence.EntityManagerFactory;
+
+/** Remembers the number of items matched by gallery queries, so that showing a page does not require counting all
+ * items of the gallery.
+ * <p>
+ * Counts are keyed by {@link org.gamboni.cloudspill.server.query.Java8SearchCriteria#getCountKey} and tagged with a
+ * version number incremented each time an item is committed. A count is exact if its version is current. Large
+ * counts remain in use for a while after items change, as a few items more or less do not make a difference for
+ * paging; they get recomputed once they are old enough.
+ * </p>
+ *
+ * @author tendays
+ */
+public class ItemCountCache {
+    private static final int MAX_SIZE = 1_000;
+    private static final long EXPIRY_MINUTES = 60;
+    /** Counts at least this large may be used after items have changed. */
+    private static final long APPROXIMATE_THRESHOLD = 10_000;
+    /** How long a count may be used after items have changed. */
+    private static final long APPROXIMATE_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final AtomicLong version = new AtomicLong();
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private final AtomicLong exactHits = new AtomicLong();
+    private final AtomicLong approximateHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Entry {
+        final long count;
+        final long version;
+        final long computedAt;
+
+        Entry(long count, long version, long computedAt) {
+            this.count = count;
+            this.version = version;
+            this.computedAt = computedAt;
+        }
+    }
+
+    /** Increment the version whenever an item is inserted, updated or deleted through the given EntityManagerFactory.
+     * Changes done without going through Hibernate entities must call {@link #invalidate()} explicitly. */
+    public void listenTo(EntityManagerFactory sessionFactory) {
+        final ItemChangeListener listener = new ItemChangeListener();
+        final EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory.unwrap(SessionFactory.class))
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, listener);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, listener);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, listener);
+    }
+
+    /** Mark all counts as out of date. */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    /** Return the number of items matched by the query with the given key, calling {@code counter} if it is not
+     * known. */
+    public long get(String key, LongSupplier counter) {
+        // Read the version before counting, so that a change committed while counting makes the result out of date
+        final long currentVersion = version.get();
+        final long now = System.currentTimeMillis();
+        final Entry entry = entries.getIfPresent(key);
+        if (entry != null) {
+            if (entry.version == currentVersion) {
+                exactHits.incrementAndGet();
+                return entry.count;
+            } else if (entry.count >= APPROXIMATE_THRESHOLD && now - entry.computedAt < APPROXIMATE_MAX_AGE_MILLIS) {
+                approximateHits.incrementAndGet();
+                return entry.count;
+            }
+        }
+        misses.incrementAndGet();
+        final long count = counter.getAsLong();
+        entries.put(key, new Entry(count, currentVersion, now));
+        return count;
+    }
+
+    public String getStatistics() {
+        return "Item count cache: "+ entries.size() +" queries, "+ exactHits.get() +" exact hits, "+
+                approximateHits.get() +" approximate hits, "+ misses.get() +" misses, version "+ version.get();
+    }
+
+    private class ItemChangeListener implements PostCommitInsertEventListener, PostCommitUpdateEventListener,
+            PostCommitDeleteEventListener {
+        // Hibernate listener interfaces are Serializable, although listeners are never serialised
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean requiresPostCommitHanding(EntityPersister persister) {
+            return BackendItem.class.isAssignableFrom(persister.getMappedClass());
+        }
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            onChange(event.getEntity());
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            onChange(event.getEntity());
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            onChange(event.getEntity());
+        }
+
+        /* A failed commit did not change anything, but invalidating is harmless */
+
+        @Override
+        public void onPostInsertCommitFailed(PostInsertEvent event) {
+            onChange(event.getEntity());
+        }
+
+        @Override
+        public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+            onChange(event.getEntity());
+        }
+
+        @Override
+        public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+            onChange(event.getEntity());
+        }
+
+        private void onChange(Object entity) {
+            if (entity instanceof BackendItem) {
+                invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.gamboni.cloudspill.domain.User;
+import org.gamboni.cloudspill.shared.domain.InvalidPasswordException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Remembers recent successful password verifications, so that clients using HTTP Basic authentication do not pay
+ * for a bcrypt computation on every request.
+ * <p>
+ * Passwords are not kept in memory: entries are keyed by user name and an HMAC of the password, with a key generated
+ * at startup. Each entry records the password hash it was verified against, so that it stops matching as soon as
+ * the password changes.
+ * </p>
+ *
+ * @author tendays
+ */
+public class PasswordCache {
+    private static final int MAX_SIZE = 1_000;
+    private static final long EXPIRY_MINUTES = 5;
+
+    private final SecretKeySpec key;
+
+    /** Maps user name and password HMAC to the password hash the password was verified against. */
+    private final Cache<String, String> verified = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    public PasswordCache() {
+        final byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        this.key = new SecretKeySpec(bytes, "HmacSHA256");
+    }
+
+    /** Verify the given password, skipping bcrypt if it has been verified recently. */
+    public void verify(User user, String password) throws InvalidPasswordException {
+        final String cacheKey = user.getName() +":"+ hmac(password);
+        final String hash = verified.getIfPresent(cacheKey);
+        if (hash != null && hash.equals(user.getPass())) {
+            return;
+        }
+        user.verifyPassword(password);
+        verified.put(cacheKey, user.getPass());
+    }
+
+    /** Forget all verified passwords of the given user, for instance because their password changed. */
+    public void invalidate(String username) {
+        verified.asMap().keySet().removeIf(k -> k.startsWith(username +":"));
+    }
+
+    private String hmac(String password) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getStatistics() {
+        final CacheStats stats = verified.stats();
+        return "Password cache: "+ verified.size() +" entries, "+ stats.hitCount() +" hits, "+ stats.missCount() +" misses ("+
+                Math.round(stats.hitRate() * 100) +"% hit ratio)";
+    }
+}
@@ -0,0 +1,205 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.gamboni.cloudspill.domain.Visibility;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+/** Brings the database schema up to date, as the schema is not managed by Hibernate.
+ * <p>
+ * Changes are listed in {@link #STEPS}, and the number of steps already applied is stored in the SchemaVersion table.
+ * New changes must be appended to the list, never inserted. After migrating, the indexes needed by the main queries
+ * are checked, and the execution plans of those queries are logged, so that a missing or unused index is visible in
+ * the startup log.
+ * </p>
+ *
+ * @author tendays
+ */
+public class SchemaMigrations {
+
+    /** A secondary index. An existing index is considered equivalent if it starts with the same columns (and is
+     * unique, if required), whatever its name. */
+    private static class Index {
+        final String table;
+        final String name;
+        final List<String> columns;
+        final boolean unique;
+
+        Index(String table, String name, boolean unique, String... columns) {
+            this.table = table;
+            this.name = name;
+            this.unique = unique;
+            this.columns = ImmutableList.copyOf(columns);
+        }
+
+        boolean exists(EntityManager em) {
+            @SuppressWarnings("unchecked") // native queries selecting several columns return Object[] rows
+            final List<Object[]> rows = em.createNativeQuery("select index_name, " +
+                    "group_concat(column_name order by seq_in_index separator ','), min(non_unique) " +
+                    "from information_schema.statistics where table_schema = database() and table_name = ?1 " +
+                    "group by index_name")
+                    .setParameter(1, table)
+                    .getResultList();
+            final String wanted = Joiner.on(',').join(columns);
+            for (Object[] row : rows) {
+                final String existing = (String) row[1];
+                final boolean existingUnique = ((Number) row[2]).intValue() == 0;
+                if (unique ? (existingUnique && existing.equalsIgnoreCase(wanted)) :
+                        (existing + ",").toLowerCase().startsWith((wanted + ",").toLowerCase())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void create(EntityManager em) {
+            if (exists(em)) {
+                return;
+            }
+            Log.info("Creating index "+ this);
+            em.createNativeQuery("create "+ (unique ? "unique " : "") +"index "+ name +" on "+ table +
+                    " ("+ Joiner.on(", ").join(columns) +")").executeUpdate();
+        }
+
+        @Override
+        public String toString() {
+            return name +" on "+ table + columns + (unique ? " (unique)" : "");
+        }
+    }
+
+    private interface Step {
+        void apply(EntityManager em);
+    }
+
+    /** Items are uploaded and looked up by path. Being unique, a concurrent upload of the same file fails instead of
+     * creating a duplicate. */
+    private static final Index ITEM_PATH = new Index("Item", "Item_user_folder_path", true, "user", "folder", "path");
+    /** Date ranges, for admins, and for users who also see their own items. */
+    private static final Index ITEM_DATE = new Index("Item", "Item_date", false, "date");
+    /** Galleries restricted by {@link Visibility}, added by {@link VisibilityColumn}. */
+    private static final Index ITEM_VISIBILITY = new Index("Item", VisibilityColumn.INDEX_NAME, false, "visibility", "date");
+    /** Synchronisation of items modified since a given time. */
+    private static final Index ITEM_UPDATED = new Index("Item", "Item_updated", false, "updated", "id");
+    private static final Index ITEM_CHECKSUM = new Index("Item", "Item_checksum", false, "checksum");
+    /** Tag galleries. The primary key of Item_tags starts with the item id, which does not help finding items. */
+    private static final Index ITEM_TAGS = new Index("Item_tags", "Item_tags_tags", false, "tags", "Item_id");
+    /** Token lists. Usually already covered by the foreign key. */
+    private static final Index TOKEN_USER = new Index("UserAuthToken", "UserAuthToken_user", false, "user_name");
+
+    private static final List<Index> INDEXES = ImmutableList.of(
+            ITEM_PATH, ITEM_DATE, ITEM_VISIBILITY, ITEM_UPDATED, ITEM_CHECKSUM, ITEM_TAGS, TOKEN_USER);
+
+    /** Schema changes, in the order they were introduced. Version n of the schema has the first n steps applied. */
+    private static final List<Step> STEPS = ImmutableList.of(
+            em -> new VisibilityColumn().create(em),
+            SchemaMigrations::createUniquePathIndex,
+            ITEM_DATE::create,
+            ITEM_UPDATED::create,
+            ITEM_CHECKSUM::create,
+            ITEM_TAGS::create,
+            TOKEN_USER::create);
+
+    /** Representative queries, whose execution plan is logged at startup. Parameters are replaced by plausible
+     * values. */
+    private static final Map<String, String> EXPLAINED_QUERIES = ImmutableMap.<String, String>builder()
+            .put("upload collision check",
+                    "select id from Item where user = 'u' and folder = 'f' and path = 'p'")
+            .put("public gallery",
+                    "select id from Item where visibility = "+ Visibility.PUBLIC.ordinal() +
+                            " and date >= '2020-01-01' and date < '2021-01-01' order by date desc limit 60")
+            .put("user gallery",
+                    "select id from Item where (visibility >= "+ Visibility.USERS.ordinal() +" or user = 'u')" +
+                            " and date >= '2020-01-01' and date < '2021-01-01' order by date desc limit 60")
+            .put("tag gallery",
+                    "select i.id from Item i join Item_tags t on t.Item_id = i.id where t.tags = 't'" +
+                            " order by i.date desc limit 60")
+            .put("items modified since",
+                    "select id from Item where updated >= '2020-01-01' order by updated, id limit 500")
+            .put("checksum lookup",
+                    "select id from Item where checksum = 'c'")
+            .put("token list",
+                    "select id from UserAuthToken where user_name = 'u'")
+            .build();
+
+    /** Apply missing steps, verify indexes and log execution plans. */
+    public void run(EntityManagerFactory emf) {
+        final int version = inTransaction(emf, em -> {
+            em.createNativeQuery("create table if not exists SchemaVersion (version integer not null)").executeUpdate();
+            final Number current = (Number) em.createNativeQuery("select max(version) from SchemaVersion").getSingleResult();
+            return (current == null) ? 0 : current.intValue();
+        });
+
+        for (int step = version; step < STEPS.size(); step++) {
+            final int newVersion = step + 1;
+            Log.info("Migrating schema to version "+ newVersion);
+            inTransaction(emf, em -> {
+                STEPS.get(newVersion - 1).apply(em);
+                em.createNativeQuery("insert into SchemaVersion (version) values (?1)")
+                        .setParameter(1, newVersion)
+                        .executeUpdate();
+                return null;
+            });
+        }
+
+        inTransaction(emf, em -> {
+            for (Index index : INDEXES) {
+                if (!index.exists(em)) {
+                    Log.warn("Missing index "+ index);
+                }
+            }
+            for (Map.Entry<String, String> query : EXPLAINED_QUERIES.entrySet()) {
+                explain(em, query.getKey(), query.getValue());
+            }
+            return null;
+        });
+    }
+
+    private static void createUniquePathIndex(EntityManager em) {
+        final Number duplicates = (Number) em.createNativeQuery("select count(*) from " +
+                "(select 1 from Item group by user, folder, path having count(*) > 1) d").getSingleResult();
+        if (duplicates.longValue() == 0) {
+            ITEM_PATH.create(em);
+        } else {
+            Log.error(duplicates +" paths are used by more than one item. Creating a non-unique index instead of "+
+                    ITEM_PATH +"; remove duplicates and recreate the index to prevent new ones");
+            new Index(ITEM_PATH.table, ITEM_PATH.name, false, ITEM_PATH.columns.toArray(new String[0])).create(em);
+        }
+    }
+
+    private static void explain(EntityManager em, String description, String sql) {
+        final StringBuilder plan = new StringBuilder("Execution plan of "+ description +":");
+        for (Object row : em.createNativeQuery("explain "+ sql).getResultList()) {
+            plan.append("\n  ").append((row instanceof Object[]) ? Joiner.on(" | ").useForNull("-").join((Object[]) row) : row);
+        }
+        Log.info(plan.toString());
+    }
+
+    private interface TransactionBody<R> {
+        R run(EntityManager em);
+    }
+
+    private static <R> R inTransaction(EntityManagerFactory emf, TransactionBody<R> body) {
+        final EntityManager em = emf.createEntityManager();
+        EntityTransaction tx = null;
+        try {
+            tx = em.getTransaction();
+            tx.begin();
+            final R result = body.run(em);
+            tx.commit();
+            tx = null;
+            return result;
+        } finally {
+            if (tx != null) { tx.rollback(); }
+            em.close();
+        }
+    }
+}
@@ -2,12 +2,14 @@ package org.gamboni.cloudspill.server;
 
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.gamboni.cloudspill.domain.GalleryPart;
 import org.gamboni.cloudspill.domain.Item;
 import org.gamboni.cloudspill.domain.User;
 import org.gamboni.cloudspill.domain.UserAuthToken;
+import org.gamboni.cloudspill.server.config.BackendConfiguration;
 import org.gamboni.cloudspill.server.config.ServerConfiguration;
 import org.gamboni.cloudspill.shared.domain.Comment;
 import org.hibernate.c3p0.internal.C3P0ConnectionProvider;
@@ -41,6 +43,11 @@ public class ServerModule extends BackendModule {
 		return new ServerConfiguration(configPath);
 	}
 
+	@Provides
+	public BackendConfiguration backendConfiguration(ServerConfiguration configuration) {
+		return configuration;
+	}
+
     @Override
     protected Class<? extends AbstractServer> getServerClass() {
         return CloudSpillServer.class;
@@ -56,4 +63,20 @@ public class ServerModule extends BackendModule {
                 Comment.class
         );
     }
+
+    @Override
+    protected Map<Class<?>, String> getCachedEntities() {
+        return ImmutableMap.of(
+                User.class, "user",
+                UserAuthToken.class, "userAuthToken",
+                GalleryPart.class, "galleryPart",
+                Item.class, "item");
+    }
+
+    @Override
+    protected Map<String, String> getCachedCollections() {
+        return ImmutableMap.of(
+                GalleryPart.class.getName() +".tags", "galleryPart.tags",
+                Item.class.getName() +".tags", "item.tags");
+    }
 }
@@ -0,0 +1,286 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.gamboni.cloudspill.domain.BackendItem;
+import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
+import org.gamboni.cloudspill.domain.User;
+import org.gamboni.cloudspill.domain.Visibility;
+import org.gamboni.cloudspill.shared.api.ItemCredentials;
+import org.gamboni.cloudspill.shared.domain.Items;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/** Maintains the DaySummary and TagSummary tables, which hold the number of items of each day and tag, along with
+ * the most recent one, used as cover in year and tag views.
+ * <p>
+ * Rows are split by visibility scope, so that each user only sees counts and covers of items they can access: the
+ * {@value #PUBLIC_SCOPE} scope holds public items, and there is a {@value #PRIVATE_SCOPE_PREFIX}user scope for
+ * other items of each user. An item belongs to exactly one scope.
+ * </p><p>
+ * Tables are updated in the same transaction as the items they summarise. They can be recomputed from scratch with
+ * {@link #rebuild}.
+ * </p>
+ *
+ * @author tendays
+ */
+public class SummaryTables {
+    public static final String PUBLIC_SCOPE = "public";
+    public static final String PRIVATE_SCOPE_PREFIX = "private:";
+
+    /** Maximum number of keys or ids passed to a single statement. */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String SCOPE_OF_ITEM = "(case when i.visibility = "+ Visibility.PUBLIC.ordinal() +" " +
+            "then '"+ PUBLIC_SCOPE +"' else concat('"+ PRIVATE_SCOPE_PREFIX +"', i.user) end)";
+
+    /** One day or tag, as seen by a given user. */
+    public static class Entry {
+        public final String key;
+        public final long items;
+        public final long cover;
+        public final String coverChecksum;
+
+        Entry(String key, long items, long cover, String coverChecksum) {
+            this.key = key;
+            this.items = items;
+            this.cover = cover;
+            this.coverChecksum = coverChecksum;
+        }
+    }
+
+    /** The two summary tables, which only differ by their key column and the way items are matched to keys. */
+    private enum Table {
+        DAY("DaySummary", "day", "date not null",
+                "date(i.date)", "Item i where i.date is not null"),
+        TAG("TagSummary", "tag", "varchar(255) not null",
+                "k.tags", "Item_tags k join Item i on i.id = k.Item_id where 1=1");
+
+        final String name;
+        final String keyColumn;
+        final String keyType;
+        /** Expression giving the key of item i. */
+        final String keyOfItem;
+        /** From and where clauses selecting items having a key. */
+        final String itemsWithKey;
+
+        Table(String name, String keyColumn, String keyType, String keyOfItem, String itemsWithKey) {
+            this.name = name;
+            this.keyColumn = keyColumn;
+            this.keyType = keyType;
+            this.keyOfItem = keyOfItem;
+            this.itemsWithKey = itemsWithKey;
+        }
+    }
+
+    /** Create the summary tables if they do not exist yet.
+     *
+     * @return true if they were created, and need to be {@link #rebuild rebuilt}
+     */
+    public boolean createTables(EntityManager em) {
+        final boolean exists = !em.createNativeQuery("show tables like 'DaySummary'").getResultList().isEmpty();
+        for (Table table : Table.values()) {
+            em.createNativeQuery("create table if not exists "+ table.name +" (" +
+                    "scope varchar(100) not null, " +
+                    table.keyColumn +" "+ table.keyType +", " +
+                    "items bigint not null, " +
+                    "cover bigint not null, " +
+                    "coverChecksum varchar(255), " +
+                    "primary key (scope, "+ table.keyColumn +"))").executeUpdate();
+        }
+        return !exists;
+    }
+
+    /** Recompute both tables from the Item table. */
+    public void rebuild(EntityManager em) {
+        recompute(em, Table.DAY, null);
+        recompute(em, Table.TAG, null);
+    }
+
+    /** Recompute the rows of the given keys (all keys if null) from the Item table. */
+    private void recompute(EntityManager em, Table table, Collection<?> keys) {
+        if (keys != null && keys.isEmpty()) {
+            return;
+        }
+        final String keyCondition = (keys == null) ? "" :
+                " in ("+ BulkTagging.placeholders(1, keys.size()) +")";
+        final Query delete = CloudSpillEntityManagerDomain.createNativeUpdate(em, "delete from "+ table.name +
+                ((keys == null) ? "" : " where "+ table.keyColumn + keyCondition), table.name);
+        final Query insert = CloudSpillEntityManagerDomain.createNativeUpdate(em,
+                "insert into "+ table.name +" (scope, "+ table.keyColumn +", items, cover, coverChecksum) " +
+                "select q.scope, q.k, q.items, q.cover, c.checksum from " +
+                "(select "+ SCOPE_OF_ITEM +" scope, "+ table.keyOfItem +" k, count(*) items, max(i.id) cover " +
+                "from "+ table.itemsWithKey +
+                ((keys == null) ? "" : " and "+ table.keyOfItem + keyCondition) +
+                " group by scope, k) q join Item c on c.id = q.cover", table.name);
+        if (keys != null) {
+            BulkTagging.setParameters(delete, 1, keys);
+            BulkTagging.setParameters(insert, 1, keys);
+        }
+        delete.executeUpdate();
+        insert.executeUpdate();
+    }
+
+    /** Scopes of items visible with the given credentials, or null if all items are visible. */
+    public static List<String> visibleScopes(ItemCredentials credentials) {
+        if (credentials.hasGroup(User.ADMIN_GROUP)) {
+            return null;
+        } else if (credentials instanceof ItemCredentials.UserCredentials) {
+            return ImmutableList.of(PUBLIC_SCOPE, PRIVATE_SCOPE_PREFIX + ((ItemCredentials.UserCredentials) credentials).user.getName());
+        } else {
+            return ImmutableList.of(PUBLIC_SCOPE);
+        }
+    }
+
+    /** Days of the given year having items in the given scopes (null for all scopes). */
+    public List<Entry> getDays(EntityManager em, int year, List<String> scopes) {
+        final Query query = em.createNativeQuery("select day, items, cover, coverChecksum from DaySummary " +
+                "where day >= ?1 and day < ?2"+ scopeCondition(scopes, 3) +" order by day");
+        query.setParameter(1, LocalDate.ofYearDay(year, 1));
+        query.setParameter(2, LocalDate.ofYearDay(year + 1, 1));
+        setScopeParameters(query, 3, scopes);
+        @SuppressWarnings("unchecked") // native queries selecting several columns return Object[] rows
+        final List<Object[]> rows = query.getResultList();
+        return merge(rows, key -> ((java.sql.Date) key).toLocalDate().toString());
+    }
+
+    /** Tags having items in the given scopes (null for all scopes). */
+    public List<Entry> getTags(EntityManager em, List<String> scopes) {
+        final Query query = em.createNativeQuery("select tag, items, cover, coverChecksum from TagSummary where 1=1" +
+                scopeCondition(scopes, 1) +" order by tag");
+        setScopeParameters(query, 1, scopes);
+        @SuppressWarnings("unchecked") // native queries selecting several columns return Object[] rows
+        final List<Object[]> rows = query.getResultList();
+        return merge(rows, key -> (String) key);
+    }
+
+    /** All tags in use. */
+    @SuppressWarnings("unchecked") // the only column is a varchar
+    public List<String> getTagNames(EntityManager em) {
+        return (List<String>) em.createNativeQuery("select distinct tag from TagSummary order by tag").getResultList();
+    }
+
+    private static String scopeCondition(List<String> scopes, int position) {
+        if (scopes == null) {
+            return "";
+        }
+        final List<String> parameters = new ArrayList<>();
+        for (int i = 0; i < scopes.size(); i++) {
+            parameters.add("?"+ (position + i));
+        }
+        return " and scope in ("+ String.join(", ", parameters) +")";
+    }
+
+    private static void setScopeParameters(Query query, int position, List<String> scopes) {
+        if (scopes != null) {
+            for (int i = 0; i < scopes.size(); i++) {
+                query.setParameter(position + i, scopes.get(i));
+            }
+        }
+    }
+
+    private interface KeyReader {
+        String read(Object key);
+    }
+
+    /** Merge rows of the same key from different scopes, keeping the order of keys. */
+    private static List<Entry> merge(List<Object[]> rows, KeyReader keyReader) {
+        final Map<String, Entry> result = new LinkedHashMap<>();
+        for (Object[] row : rows) {
+            final String key = keyReader.read(row[0]);
+            final Entry entry = new Entry(key, ((Number) row[1]).longValue(), ((Number) row[2]).longValue(), (String) row[3]);
+            final Entry previous = result.get(key);
+            if (previous == null) {
+                result.put(key, entry);
+            } else {
+                final Entry newer = (entry.cover > previous.cover) ? entry : previous;
+                result.put(key, new Entry(key, previous.items + entry.items, newer.cover, newer.coverChecksum));
+            }
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    /** Account for a newly created item. */
+    public void itemAdded(EntityManager em, BackendItem item) {
+        em.flush();
+        final String scope = scopeOf(item.getUser(), item.getTags());
+        if (item.getDate() != null) {
+            add(em, Table.DAY, scope, item.getDate().toLocalDate(), item);
+        }
+        for (String tag : item.getTags()) {
+            add(em, Table.TAG, scope, tag, item);
+        }
+    }
+
+    /** Account for a change in the tags of the given items. If their visibility may have changed, rows of all their
+     * days and tags are recomputed, otherwise only rows of the changed tags. */
+    public void tagsChanged(EntityManager em, Collection<Long> ids, BulkTagging tagging) {
+        em.flush();
+        final Set<String> tags = new HashSet<>(tagging.getAffectedTags());
+        if (Items.isPublic(tags)) {
+            final Set<Object> days = new HashSet<>();
+            for (List<Long> batch : Lists.partition(new ArrayList<>(ids), BATCH_SIZE)) {
+                final Query dayQuery = em.createNativeQuery("select distinct date(i.date) from Item i " +
+                        "where i.date is not null and i.id in ("+ BulkTagging.placeholders(1, batch.size()) +")");
+                BulkTagging.setParameters(dayQuery, 1, batch);
+                for (Object day : dayQuery.getResultList()) {
+                    days.add(day);
+                }
+
+                final Query tagQuery = em.createNativeQuery("select distinct k.tags from Item_tags k " +
+                        "where k.Item_id in ("+ BulkTagging.placeholders(1, batch.size()) +")");
+                BulkTagging.setParameters(tagQuery, 1, batch);
+                for (Object tag : tagQuery.getResultList()) {
+                    tags.add((String) tag);
+                }
+            }
+            for (List<Object> batch : Lists.partition(new ArrayList<>(days), BATCH_SIZE)) {
+                recompute(em, Table.DAY, batch);
+            }
+        }
+        for (List<String> batch : Lists.partition(new ArrayList<>(tags), BATCH_SIZE)) {
+            recompute(em, Table.TAG, batch);
+        }
+    }
+
+    /** Account for the checksum of an item being set, in case it is used as cover. */
+    public void checksumChanged(EntityManager em, BackendItem item) {
+        for (Table table : Table.values()) {
+            CloudSpillEntityManagerDomain.createNativeUpdate(em,
+                    "update "+ table.name +" set coverChecksum = ?1 where cover = ?2", table.name)
+                    .setParameter(1, item.getChecksum())
+                    .setParameter(2, item.getServerId())
+                    .executeUpdate();
+        }
+    }
+
+    private static String scopeOf(String user, Set<String> tags) {
+        return Items.isPublic(tags) ? PUBLIC_SCOPE : PRIVATE_SCOPE_PREFIX + user;
+    }
+
+    private void add(EntityManager em, Table table, String scope, Object key, BackendItem item) {
+        // Assignments are evaluated left to right, so coverChecksum must be set before cover
+        CloudSpillEntityManagerDomain.createNativeUpdate(em,
+                "insert into "+ table.name +" (scope, "+ table.keyColumn +", items, cover, coverChecksum) " +
+                "values (?1, ?2, 1, ?3, ?4) on duplicate key update " +
+                "coverChecksum = if(values(cover) > cover, values(coverChecksum), coverChecksum), " +
+                "cover = greatest(cover, values(cover)), " +
+                "items = items + 1", table.name)
+                .setParameter(1, scope)
+                .setParameter(2, key)
+                .setParameter(3, item.getServerId())
+                .setParameter(4, item.getChecksum())
+                .executeUpdate();
+    }
+}
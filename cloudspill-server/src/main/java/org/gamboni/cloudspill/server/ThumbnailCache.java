@@ -0,0 +1,200 @@
+package org.gamboni.cloudspill.server;
+
+import org.gamboni.cloudspill.server.config.ServerConfiguration;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/** Content-addressed store of rendered thumbnails. Thumbnails are keyed by checksum and size, so they never need to be
+ * invalidated: an Item with different contents has a different checksum.
+ * <p>
+ * Files are written atomically (so a concurrent reader never sees a partial thumbnail) and the least recently used
+ * ones are deleted when the total size exceeds {@link ServerConfiguration#getThumbnailCacheSize()}.
+ * </p>
+ *
+ * @author tendays
+ */
+@Singleton
+public class ThumbnailCache {
+    private static final String EXTENSION = ".jpg";
+
+    private final Path root;
+    private final long maxSize;
+
+    /** Files currently in the cache, in access order (least recently used first), mapped to their size in bytes.
+     * All access must be synchronized on the Map itself.
+     */
+    private final LinkedHashMap<Path, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Inject
+    public ThumbnailCache(ServerConfiguration configuration) {
+        this.root = configuration.getThumbnailCachePath().toPath();
+        this.maxSize = configuration.getThumbnailCacheSize();
+        load();
+    }
+
+    /** Register files left by a previous run, oldest first so that they are the first ones to get evicted. */
+    private void load() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files
+                    .filter(f -> f.getFileName().toString().endsWith(EXTENSION))
+                    .sorted(Comparator.comparing(this::lastModified))
+                    .collect(Collectors.toList())) {
+                final long size = Files.size(file);
+                entries.put(file, size);
+                totalSize += size;
+            }
+        } catch (IOException e) {
+            Log.warn("Failed scanning thumbnail cache "+ root, e);
+        }
+        Log.info("Thumbnail cache contains "+ entries.size() +" files, "+ totalSize +" bytes");
+        synchronized (entries) {
+            evict();
+        }
+    }
+
+    private FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /** Open the cached thumbnail of the given size for the item with the given checksum, or return null if it has not
+     * been rendered yet. The file is opened before eviction may delete it, and remains readable through the returned
+     * channel even if it is evicted afterwards. The caller must close the channel. */
+    public FileChannel get(String checksum, int size) {
+        final Path file = pathFor(checksum, size);
+        FileChannel channel = null;
+        synchronized (entries) {
+            // get() updates access order
+            if (entries.get(file) != null) {
+                try {
+                    channel = FileChannel.open(file, StandardOpenOption.READ);
+                } catch (IOException e) {
+                    Log.warn("Cached thumbnail "+ file +" is unreadable", e);
+                }
+            }
+        }
+        if (channel != null) {
+            hits.incrementAndGet();
+            try {
+                // Keep access order across restarts
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                /* Not important */
+            }
+            return channel;
+        } else {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /** True if the given thumbnail has already been rendered. Unlike {@link #get}, this does not count as an access. */
+    public boolean contains(String checksum, int size) {
+        synchronized (entries) {
+            return entries.containsKey(pathFor(checksum, size));
+        }
+    }
+
+    /** Store the given rendered thumbnail. Any existing thumbnail for the same checksum and size is replaced. */
+    public void put(String checksum, int size, byte[] data) throws IOException {
+        final Path file = pathFor(checksum, size);
+        Files.createDirectories(file.getParent());
+
+        /* Write to a temporary file in the same folder, then move it in place so readers never see a partial file */
+        final Path temp = Files.createTempFile(file.getParent(), "thumb", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                out.write(data);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        synchronized (entries) {
+            final Long previous = entries.put(file, (long) data.length);
+            totalSize += data.length - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    /** Delete least recently used files until the cache fits into its size limit. Must be called while holding the
+     * {@link #entries} lock. */
+    private void evict() {
+        final Iterator<Map.Entry<Path, Long>> iterator = entries.entrySet().iterator();
+        while (totalSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<Path, Long> eldest = iterator.next();
+            try {
+                Files.deleteIfExists(eldest.getKey());
+            } catch (IOException e) {
+                Log.warn("Failed evicting "+ eldest.getKey() +" from thumbnail cache", e);
+            }
+            totalSize -= eldest.getValue();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private Path pathFor(String checksum, int size) {
+        /* Checksums are base64-encoded: make them file-name safe */
+        final String name = checksum
+                .replace('/', '_')
+                .replace('+', '-')
+                .replace("=", "");
+        return root.resolve(String.valueOf(size))
+                .resolve(name.substring(0, Math.min(2, name.length())))
+                .resolve(name + EXTENSION);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String getStatistics() {
+        final long hits = this.hits.get();
+        final long lookups = hits + misses.get();
+        synchronized (entries) {
+            return "Thumbnail cache: "+ entries.size() +" files, "+ totalSize +"/"+ maxSize +" bytes, "+
+                    hits +"/"+ lookups +" hits"+ (lookups == 0 ? "" : " ("+ (hits * 100 / lookups) +"%)") +", "+
+                    evictions.get() +" evictions";
+        }
+    }
+}
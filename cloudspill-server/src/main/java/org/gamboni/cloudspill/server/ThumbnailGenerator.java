@@ -0,0 +1,356 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.collect.ImmutableList;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.gamboni.cloudspill.domain.BackendItem;
+import org.gamboni.cloudspill.server.config.ServerConfiguration;
+import org.gamboni.cloudspill.shared.api.CloudSpillApi;
+import org.gamboni.cloudspill.shared.domain.ItemType;
+import org.gamboni.cloudspill.shared.util.ExifThumbnail;
+import org.gamboni.cloudspill.shared.util.ImageOrientationUtil;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/** Renders thumbnails on a fixed pool of worker threads and stores them into the {@link ThumbnailCache}.
+ * <p>
+ * Work comes through two lanes: interactive requests (a client is waiting for the thumbnail) are always
+ * served before background ones (pre-generation after upload and at startup). The background lane is bounded;
+ * when it is full, {@link #offer} drops the request and {@link #put} blocks.
+ * </p>
+ *
+ * @author tendays
+ */
+@Singleton
+public class ThumbnailGenerator {
+
+    /** Sizes rendered ahead of time, as used by GalleryPage and ImagePage. */
+    public static final List<Integer> PREGENERATED_SIZES = ImmutableList.of(CloudSpillApi.Size.IMAGE_THUMBNAIL.pixels);
+
+    /** EXIF previews are at most 320x240 pixels (usually 160x120), so larger thumbnails are never rendered from
+     * them and do not need to look for one. */
+    private static final int MAX_EMBEDDED_THUMBNAIL_SIZE = 240;
+
+    private final ThumbnailCache cache;
+    private final int workers;
+
+    private final BlockingQueue<Job> interactive = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Job> background;
+    /** Number of jobs in both queues together. Workers acquire a permit before polling. */
+    private final Semaphore pending = new Semaphore(0);
+
+    /** Jobs that are queued or being rendered, to avoid rendering the same thumbnail several times. */
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /** Number of thumbnails rendered from the EXIF preview rather than the main image. */
+    private final AtomicLong embedded = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+    private volatile long startTime;
+
+    @Inject
+    public ThumbnailGenerator(ServerConfiguration configuration, ThumbnailCache cache) {
+        this.cache = cache;
+        this.workers = configuration.getThumbnailWorkers();
+        this.background = new LinkedBlockingQueue<>(configuration.getThumbnailQueueSize());
+    }
+
+    /** Start the worker threads. */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < workers; i++) {
+            final Thread thread = new Thread(this::work, "thumbnail-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Render the given thumbnail ahead of every background job, and wait for the result. */
+    public byte[] render(BackendItem item, File file, int size) throws IOException, InterruptedException {
+        final Job job = new Job(item, file, size);
+        interactive.add(job);
+        pending.release();
+        try {
+            return job.future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /** Queue pre-generation of the standard thumbnails of the given item, unless the background queue is full. */
+    public void offer(BackendItem item, File file) {
+        for (int size : PREGENERATED_SIZES) {
+            if (isMissing(item, size)) {
+                if (background.offer(new Job(item, file, size))) {
+                    pending.release();
+                } else {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Queue pre-generation of the standard thumbnails of the given item, waiting for room in the background queue. */
+    public void put(BackendItem item, File file) throws InterruptedException {
+        for (int size : PREGENERATED_SIZES) {
+            if (isMissing(item, size)) {
+                background.put(new Job(item, file, size));
+                pending.release();
+            }
+        }
+    }
+
+    private boolean isMissing(BackendItem item, int size) {
+        return item.getChecksum() != null && !cache.contains(item.getChecksum(), size);
+    }
+
+    private void work() {
+        while (true) {
+            final Job job;
+            try {
+                pending.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            final Job urgent = interactive.poll();
+            job = (urgent == null) ? background.poll() : urgent;
+            if (job != null) {
+                job.run();
+            }
+        }
+    }
+
+    private class Job {
+        final ItemType type;
+        final File file;
+        final String checksum;
+        final int size;
+        final long itemId;
+        final CompletableFuture<byte[]> future;
+
+        Job(BackendItem item, File file, int size) {
+            this.type = item.getType();
+            this.file = file;
+            this.checksum = item.getChecksum();
+            this.size = size;
+            this.itemId = item.getServerId();
+            if (checksum == null) {
+                this.future = new CompletableFuture<>();
+            } else {
+                /* If the same thumbnail is already queued, share its result: whichever job runs first completes it */
+                this.future = inFlight.computeIfAbsent(checksum +"/"+ size, k -> new CompletableFuture<>());
+            }
+        }
+
+        void run() {
+            if (future.isDone()) {
+                return;
+            }
+            final long start = System.nanoTime();
+            try {
+                final BufferedImage renderedImage = (type == ItemType.IMAGE) ?
+                        createImageThumbnail(file, size) :
+                        createVideoThumbnail(file, size);
+                final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+                ImageIO.write(renderedImage, "jpeg", jpeg);
+                final byte[] data = jpeg.toByteArray();
+
+                if (checksum != null) {
+                    try {
+                        cache.put(checksum, size, data);
+                    } catch (IOException e) {
+                        Log.warn("Failed caching thumbnail of item "+ itemId, e);
+                    }
+                }
+                rendered.incrementAndGet();
+                renderNanos.addAndGet(System.nanoTime() - start);
+                future.complete(data);
+            } catch (Throwable t) {
+                Log.warn("Failed rendering thumbnail of item "+ itemId, t);
+                failed.incrementAndGet();
+                future.completeExceptionally(t);
+            } finally {
+                if (checksum != null) {
+                    inFlight.remove(checksum +"/"+ size, future);
+                }
+            }
+        }
+    }
+
+    public String getStatistics() {
+        final long rendered = this.rendered.get();
+        final long elapsedMinutes = Math.max(1, (System.currentTimeMillis() - startTime) / 60_000);
+        return "Thumbnail generator: "+ workers +" workers, "+
+                interactive.size() +" interactive and "+ background.size() +" background jobs queued, "+
+                rendered +" rendered ("+ (rendered / elapsedMinutes) +"/min, "+
+                (rendered == 0 ? 0 : renderNanos.get() / rendered / 1_000_000) +"ms each), "+
+                embedded.get() +" from EXIF previews, "+ failed.get() +" failed, "+ dropped.get() +" dropped";
+    }
+
+    private BufferedImage createVideoThumbnail(File file, int size) throws IOException {
+        try (FFmpegFrameGrabber g = new FFmpegFrameGrabber(file)) {
+            g.start();
+
+            final BufferedImage frame = new Java2DFrameConverter().convert(g.grabImage());
+
+            return resize(frame, size, 1);
+
+        } catch (FrameGrabber.Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Decode only what the thumbnail needs: the centred square (the rest gets cropped anyway), skipping pixels
+     * so that the decoded image is two to four times as large as the requested size (subsampling steps are whole
+     * pixels, and images smaller than that are decoded entirely). Small thumbnails are taken from the preview
+     * embedded in the EXIF data when there is one, without decoding the main image at all. */
+    private BufferedImage createImageThumbnail(File file, int size) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            final Iterator<ImageReader> readers = (input == null) ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No image reader for "+ file);
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                final int min = Math.min(width, height);
+
+                final BufferedImage embedded = readEmbeddedThumbnail(file, width, height, size);
+                if (embedded != null) {
+                    return embedded;
+                }
+
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle((width - min) / 2, (height - min) / 2, min, min));
+                final int subsampling = Math.max(1, min / (2 * size));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+                return resize(reader.read(0, param), size, ImageOrientationUtil.getExifRotation(file));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Render the thumbnail from the preview embedded in the EXIF data of the given file, if it is large enough
+     * and has the same aspect ratio as the main image (some cameras letterbox their previews).
+     *
+     * @return the rendered thumbnail, or null if the full image must be decoded.
+     */
+    private BufferedImage readEmbeddedThumbnail(File file, int width, int height, int size) {
+        if (size > MAX_EMBEDDED_THUMBNAIL_SIZE) {
+            return null;
+        }
+        final ExifThumbnail thumbnail = ExifThumbnail.read(file);
+        if (thumbnail == null) {
+            return null;
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(thumbnail.jpeg))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                // Check the dimensions, which only needs the JPEG header, before decoding anything
+                final int previewWidth = reader.getWidth(0);
+                final int previewHeight = reader.getHeight(0);
+                if (Math.min(previewWidth, previewHeight) < size ||
+                        Math.abs((long) previewWidth * height - (long) previewHeight * width) > (long) previewWidth * height / 50) {
+                    return null;
+                }
+                final BufferedImage image = reader.read(0);
+                embedded.incrementAndGet();
+                return resize(image, size, thumbnail.orientation);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            Log.warn("Unreadable EXIF thumbnail in "+ file, e);
+            return null;
+        }
+    }
+
+    private BufferedImage resize(BufferedImage image, int targetSize, int orientation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int min = Math.min(width, height);
+
+        // Keep the centred square (no-op if the decoder already cropped it)
+        BufferedImage scaled = (width == height) ? image :
+                image.getSubimage((width - min) / 2, (height - min) / 2, min, min);
+
+        // Halve the image until it is less than twice the target size: bilinear interpolation only looks at
+        // neighbouring pixels, so scaling down by more than half in one step would drop information.
+        while (min / 2 >= targetSize) {
+            min /= 2;
+            final BufferedImage half = new BufferedImage(min, min, BufferedImage.TYPE_INT_RGB);
+            final Graphics2D graphics = half.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(scaled, 0, 0, min, min, null);
+            graphics.dispose();
+            scaled = half;
+        }
+
+        BufferedImage renderedImage = new BufferedImage(targetSize, targetSize, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D graphics = renderedImage.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        if (orientation == 6) {
+            final AffineTransform transform = graphics.getTransform();
+            transform.translate(targetSize, 0);
+            transform.rotate(Math.toRadians(90));
+            graphics.setTransform(transform);
+        } else if (orientation == 3) {
+            final AffineTransform transform = graphics.getTransform();
+            transform.translate(targetSize, targetSize);
+            transform.rotate(Math.toRadians(180));
+            graphics.setTransform(transform);
+        } else if (orientation == 8) {
+            final AffineTransform transform = graphics.getTransform();
+            transform.translate(0, targetSize);
+            transform.rotate(Math.toRadians(270));
+            graphics.setTransform(transform);
+        }
+        // BufferedImages are synchronous, so no ImageObserver is needed
+        graphics.drawImage(scaled, 0, 0, targetSize, targetSize, null);
+        graphics.dispose();
+        return renderedImage;
+    }
+}
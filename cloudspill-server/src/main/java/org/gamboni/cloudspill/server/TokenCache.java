@@ -0,0 +1,95 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.gamboni.cloudspill.domain.User;
+import org.gamboni.cloudspill.shared.api.ItemCredentials;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/** Remembers recently validated user tokens, so that authenticating a request does not need its own transaction.
+ * <p>
+ * Only validated tokens are cached, along with a copy of their user (without password hash). Tokens must be
+ * {@link #revoke revoked} when they are deleted, and entries expire after a while so that changes made directly in the
+ * database eventually take effect.
+ * </p>
+ *
+ * @author tendays
+ */
+public class TokenCache {
+    private static final int MAX_SIZE = 10_000;
+    private static final long EXPIRY_MINUTES = 10;
+
+    private final Cache<Long, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /** Ids of tokens deleted recently. A request that read a token just before it got deleted must not put it back
+     * into the cache. Token ids are never reused. */
+    private final Cache<Long, Boolean> revoked = CacheBuilder.newBuilder()
+            .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private static class Entry {
+        final byte[] secretHash;
+        final User user;
+
+        Entry(byte[] secretHash, User user) {
+            this.secretHash = secretHash;
+            this.user = user;
+        }
+    }
+
+    /** If the given token is known to be validated, return its user. Otherwise, return null. */
+    public User get(ItemCredentials.UserToken token) {
+        final Entry entry = entries.getIfPresent(token.id);
+        return (entry != null &&
+                entry.user.getName().equals(token.user.getName()) &&
+                MessageDigest.isEqual(entry.secretHash, hash(token.secret))) ? entry.user : null;
+    }
+
+    /** Remember that the given token has been validated, and belongs to the given user. */
+    public void put(ItemCredentials.UserToken token, User user) {
+        final User copy = new User();
+        copy.setName(user.getName());
+        copy.setFullName(user.getFullName());
+        copy.setUserGroup(user.getUserGroup());
+        entries.put(token.id, new Entry(hash(token.secret), copy));
+        // Check after putting: either revoke() sees our entry, or we see its mark
+        if (revoked.getIfPresent(token.id) != null) {
+            entries.invalidate(token.id);
+        }
+    }
+
+    /** Forget anything known about the given token, for instance because it has just been validated. */
+    public void invalidate(long id) {
+        entries.invalidate(id);
+    }
+
+    /** The given token has been deleted: forget it and do not cache it again. */
+    public void revoke(long id) {
+        revoked.put(id, Boolean.TRUE);
+        entries.invalidate(id);
+    }
+
+    private static byte[] hash(String secret) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getStatistics() {
+        final CacheStats stats = entries.stats();
+        return "Token cache: "+ entries.size() +" tokens, "+ stats.hitCount() +" hits, "+ stats.missCount() +" misses ("+
+                Math.round(stats.hitRate() * 100) +"% hit ratio), "+ stats.evictionCount() +" evictions";
+    }
+}
@@ -0,0 +1,222 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.io.ByteStreams;
+
+import org.gamboni.cloudspill.server.config.BackendConfiguration;
+import org.gamboni.cloudspill.shared.api.ItemMetadata;
+import org.gamboni.cloudspill.shared.domain.ItemType;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/** Staging area for chunked uploads. Each upload session is a folder holding the session parameters and the chunks
+ * received so far, so sessions survive server restarts.
+ *
+ * @author tendays
+ */
+@Singleton
+public class UploadStaging {
+    private static final String SESSION_FILE = "session.properties";
+    private static final String CHUNK_PREFIX = "chunk-";
+    /** Sessions not committed after this long are deleted. */
+    private static final Duration EXPIRY = Duration.ofDays(7);
+
+    private final File root;
+
+    @Inject
+    public UploadStaging(BackendConfiguration configuration) {
+        this.root = configuration.getUploadStagingPath();
+        purge();
+    }
+
+    /** Delete expired sessions. */
+    private void purge() {
+        final File[] sessions = root.listFiles();
+        if (sessions == null) {
+            return;
+        }
+        final long limit = System.currentTimeMillis() - EXPIRY.toMillis();
+        for (File session : sessions) {
+            if (session.lastModified() < limit) {
+                Log.info("Deleting expired upload session "+ session.getName());
+                new Session(session.getName(), session).delete();
+            }
+        }
+    }
+
+    /** Start a new upload session, returning its id. */
+    public String create(String user, String folder, String path, ItemMetadata metadata, String checksum) throws IOException {
+        final String id = Security.newRandomString(32);
+        final File dir = new File(root, id);
+        if (!dir.mkdirs()) {
+            throw new IOException("Failed creating upload session folder "+ dir);
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("user", user);
+        properties.setProperty("folder", folder);
+        properties.setProperty("path", path);
+        if (metadata.itemDate != null) {
+            properties.setProperty("date", String.valueOf(metadata.itemDate.getTime()));
+        }
+        if (metadata.itemType != null) {
+            properties.setProperty("type", metadata.itemType.name());
+        }
+        if (checksum != null) {
+            properties.setProperty("checksum", checksum);
+        }
+        try (Writer out = Files.newBufferedWriter(new File(dir, SESSION_FILE).toPath(), StandardCharsets.UTF_8)) {
+            properties.store(out, null);
+        }
+        return id;
+    }
+
+    /** Return the session with the given id, or null if there is no such session. */
+    public Session get(String id) throws IOException {
+        // Session ids are alphanumeric, anything else would allow escaping the staging area
+        if (!id.matches("[0-9a-zA-Z]+")) {
+            return null;
+        }
+        final File dir = new File(root, id);
+        return new File(dir, SESSION_FILE).exists() ? new Session(id, dir) : null;
+    }
+
+    public static class Session {
+        public final String id;
+        private final File dir;
+        private Properties properties;
+
+        private Session(String id, File dir) {
+            this.id = id;
+            this.dir = dir;
+        }
+
+        private Properties getProperties() throws IOException {
+            if (properties == null) {
+                properties = new Properties();
+                try (Reader in = Files.newBufferedReader(new File(dir, SESSION_FILE).toPath(), StandardCharsets.UTF_8)) {
+                    properties.load(in);
+                }
+            }
+            return properties;
+        }
+
+        public String getUser() throws IOException {
+            return getProperties().getProperty("user");
+        }
+
+        public String getFolder() throws IOException {
+            return getProperties().getProperty("folder");
+        }
+
+        public String getPath() throws IOException {
+            return getProperties().getProperty("path");
+        }
+
+        public ItemMetadata getMetadata() throws IOException {
+            final String date = getProperties().getProperty("date");
+            final String type = getProperties().getProperty("type");
+            return new ItemMetadata(
+                    (date == null) ? null : new Date(Long.parseLong(date)),
+                    (type == null) ? null : ItemType.valueOf(type));
+        }
+
+        /** Checksum of the whole file announced by the client, or null. */
+        public String getChecksum() throws IOException {
+            return getProperties().getProperty("checksum");
+        }
+
+        /** Store the given chunk, unless its contents do not match the given checksum.
+         *
+         * @return true if the chunk was stored.
+         */
+        public boolean putChunk(int number, InputStream data, String checksum) throws IOException {
+            final File temp = File.createTempFile(CHUNK_PREFIX, ".tmp", dir);
+            try {
+                final MessageDigest md5 = MessageDigest.getInstance("MD5");
+                try (InputStream in = new DigestInputStream(data, md5);
+                     OutputStream out = new FileOutputStream(temp)) {
+                    ByteStreams.copy(in, out);
+                }
+                final String actual = new String(Base64.getEncoder().encode(md5.digest()), StandardCharsets.ISO_8859_1);
+                if (!actual.equals(checksum)) {
+                    Log.warn("Chunk "+ number +" of upload session "+ id +" has checksum "+ actual +", expected "+ checksum);
+                    return false;
+                }
+                Files.move(temp.toPath(), new File(dir, CHUNK_PREFIX + number).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                // Keep active sessions from expiring
+                dir.setLastModified(System.currentTimeMillis());
+                return true;
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            } finally {
+                temp.delete();
+            }
+        }
+
+        /** Numbers of the chunks received so far, in increasing order. */
+        public List<Integer> getReceivedChunks() {
+            final List<Integer> result = new ArrayList<>();
+            final String[] names = dir.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith(CHUNK_PREFIX) && !name.endsWith(".tmp")) {
+                        result.add(Integer.parseInt(name.substring(CHUNK_PREFIX.length())));
+                    }
+                }
+            }
+            Collections.sort(result);
+            return result;
+        }
+
+        /** Return the concatenation of the given number of chunks, or null if some of them are missing. */
+        public InputStream assemble(int count) throws IOException {
+            final List<InputStream> chunks = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final File chunk = new File(dir, CHUNK_PREFIX + i);
+                if (!chunk.exists()) {
+                    for (InputStream opened : chunks) {
+                        opened.close();
+                    }
+                    return null;
+                }
+                chunks.add(new FileInputStream(chunk));
+            }
+            return new SequenceInputStream(Collections.enumeration(chunks));
+        }
+
+        /** Delete this session and all its chunks. */
+        public void delete() {
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.gamboni.cloudspill.server;
+
+import org.gamboni.cloudspill.domain.Visibility;
+import org.gamboni.cloudspill.shared.util.Log;
+
+import javax.persistence.EntityManager;
+
+/** Adds the {@link Visibility} column to databases created before it existed. Run by {@link SchemaMigrations}.
+ * <p>
+ * The column is indexed together with the item date, so that galleries restricted to public items, or to items
+ * visible to all users, are read as an index range.
+ * </p>
+ *
+ * @author tendays
+ */
+public class VisibilityColumn {
+    public static final String INDEX_NAME = "Item_visibility_date";
+
+    /** Create, fill and index the visibility column if it does not exist yet.
+     *
+     * @return true if the column was created
+     */
+    public boolean create(EntityManager em) {
+        if (!em.createNativeQuery("show columns from Item like 'visibility'").getResultList().isEmpty()) {
+            return false;
+        }
+        Log.info("Adding visibility column to Item table");
+        em.createNativeQuery("alter table Item add column visibility integer not null default "+
+                Visibility.PRIVATE.ordinal()).executeUpdate();
+        final int updated = em.createNativeQuery("update Item i set i.visibility = "+ Visibility.sqlOf("i"))
+                .executeUpdate();
+        em.createNativeQuery("create index "+ INDEX_NAME +" on Item (visibility, date)").executeUpdate();
+        Log.info("Computed visibility of "+ updated +" items");
+        return true;
+    }
+}
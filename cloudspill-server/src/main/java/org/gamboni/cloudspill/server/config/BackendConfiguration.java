@@ -32,6 +32,12 @@ public abstract class BackendConfiguration implements SharedConfiguration {
         return new File(requireProperty("repositoryPath"));
     }
 
+    /** Folder where chunks of uploads in progress are kept. Defaults to a hidden folder inside the repository. */
+    public File getUploadStagingPath() {
+        final String path = prop.getProperty("uploadStagingPath");
+        return (path == null) ? new File(getRepositoryPath(), ".staging") : new File(path);
+    }
+
     public String getPublicUrl() {
         return requireProperty("publicUrl");
     }
@@ -18,4 +18,54 @@ public class ServerConfiguration extends BackendConfiguration {
 	public String getRepositoryName() {
 		return requireProperty("repositoryName");
 	}
+
+	/** True if uploaded files should be deduplicated through the blob store. */
+	public boolean useBlobStore() {
+		return Boolean.valueOf(prop.getProperty("blobStore", "false"));
+	}
+
+	/** Folder where deduplicated file contents are kept. Item files are hard links to them, so this must be on the same
+	 * file system as the repository. Defaults to a hidden folder inside the repository. */
+	public File getBlobStorePath() {
+		final String path = prop.getProperty("blobStorePath");
+		return (path == null) ? new File(getRepositoryPath(), ".blobs") : new File(path);
+	}
+
+	/** Folder where rendered thumbnails are kept. Defaults to a hidden folder inside the repository. */
+	public File getThumbnailCachePath() {
+		final String path = prop.getProperty("thumbnailCachePath");
+		return (path == null) ? new File(getRepositoryPath(), ".thumbnails") : new File(path);
+	}
+
+	/** Maximum total size of cached thumbnails, in bytes. */
+	public long getThumbnailCacheSize() {
+		return Long.parseLong(prop.getProperty("thumbnailCacheMegabytes", "1024")) * 1024 * 1024;
+	}
+
+	/** Number of threads rendering thumbnails. Images are decoded at reduced resolution, but video frames are still
+	 * decoded at full resolution, so thumbnail construction may be memory intensive and this should stay low. */
+	public int getThumbnailWorkers() {
+		return Integer.parseInt(prop.getProperty("thumbnailWorkers", "6"));
+	}
+
+	/** Maximum number of thumbnails waiting for background pre-generation. */
+	public int getThumbnailQueueSize() {
+		return Integer.parseInt(prop.getProperty("thumbnailQueueSize", "1000"));
+	}
+
+	/** Number of threads computing the checksum of items that have none, at startup. Hashing is mostly I/O bound. */
+	public int getChecksumThreads() {
+		final String threads = prop.getProperty("checksumThreads");
+		return (threads == null) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+	}
+
+	/** Number of computed checksums saved per transaction. */
+	public int getChecksumBatchSize() {
+		return Integer.parseInt(prop.getProperty("checksumBatchSize", "100"));
+	}
+
+	/** True if missing thumbnails of existing items should be generated at startup. */
+	public boolean backfillThumbnails() {
+		return Boolean.valueOf(prop.getProperty("backfillThumbnails", "true"));
+	}
 }
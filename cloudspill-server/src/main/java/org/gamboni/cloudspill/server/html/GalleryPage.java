@@ -59,7 +59,8 @@ public class GalleryPage extends AbstractRenderer<GalleryPage.Model> {
     protected String onLoad(Model model) {
         // Don't directly pass %s because it would get escaped as %25s
         String fakePlaceholder = "__ITEM_KEY__";
-        if (model.itemSet.totalCount > PAGE_SIZE && model.criteria.getRange().offset == 0) {
+        if (model.itemSet.totalCount > PAGE_SIZE && model.criteria.getRange().offset == 0 &&
+                !model.criteria.getRange().hasCursor()) {
             final ItemCredentials credentials;
             if (model.getAuthStatus() == ItemCredentials.AuthenticationStatus.LOGGED_IN) {
                 credentials = new ItemCredentials.UserPassword();
@@ -78,7 +79,6 @@ public class GalleryPage extends AbstractRenderer<GalleryPage.Model> {
 
     @Override
     protected HtmlFragment getBody(Model model) {
-        int pageNumber = model.criteria.getRange().offset / PAGE_SIZE;
         return HtmlFragment.concatenate(
                 (model.getAuthStatus() == ItemCredentials.AuthenticationStatus.LOGGED_IN ?
                 tag("div", "class='toolbar'",
@@ -90,11 +90,11 @@ public class GalleryPage extends AbstractRenderer<GalleryPage.Model> {
         : HtmlFragment.EMPTY),
                 tag("div", "class='description'", model.itemSet.description),
                 tag("div", "id='items'",
-                pageLink(model, pageNumber - 1, "<", model.itemSet.totalCount),
+                previousPageLink(model),
                 HtmlFragment.concatenate(
                         model.itemSet.rows.stream().map(item -> renderItem(model, item)
                         ).toArray(HtmlFragment[]::new)),
-                pageLink(model, pageNumber + 1, ">", model.itemSet.totalCount)));
+                nextPageLink(model)));
     }
 
     private HtmlFragment renderItem(Model model, BackendItem item) {
@@ -107,16 +107,41 @@ public class GalleryPage extends AbstractRenderer<GalleryPage.Model> {
                         quote(api.getThumbnailUrl(item.getServerId(), credentials, CloudSpillApi.Size.IMAGE_THUMBNAIL))));
     }
 
-    private HtmlFragment pageLink(Model model, int pageNumber, String label, long totalCount) {
-        int offset = pageNumber * PAGE_SIZE;
-        if (offset >= 0 && offset < totalCount) {
-
-            String id = (label.equals(">")) ? "id='marker' " : "";
-
-            return tag("a", id + "class='pagerLink' href="+ quote(model.criteria.withRange(QueryRange.offset(offset)).getUrl(api)),
-                    label);
+    private HtmlFragment previousPageLink(Model model) {
+        final QueryRange range = model.criteria.getRange();
+        final boolean hasPrevious = (range.before != null) ?
+                model.itemSet.rows.size() == PAGE_SIZE :
+                (range.after != null || range.offset > 0);
+        if (!hasPrevious) {
+            return HtmlFragment.EMPTY;
+        } else if (model.itemSet.firstCursor == null) {
+            return pageLink(model, QueryRange.offset(Math.max(0, range.offset - PAGE_SIZE)), "<");
         } else {
+            return pageLink(model, QueryRange.before(model.itemSet.firstCursor, PAGE_SIZE), "<");
+        }
+    }
+
+    private HtmlFragment nextPageLink(Model model) {
+        final QueryRange range = model.criteria.getRange();
+        final boolean hasNext = (range.before != null) ||
+                (range.after != null ?
+                        model.itemSet.rows.size() == PAGE_SIZE :
+                        range.offset + PAGE_SIZE < model.itemSet.totalCount);
+        if (!hasNext) {
             return HtmlFragment.EMPTY;
+        } else if (model.itemSet.lastCursor == null) {
+            return pageLink(model, QueryRange.offset(range.offset + PAGE_SIZE), ">");
+        } else {
+            return pageLink(model, QueryRange.after(model.itemSet.lastCursor, PAGE_SIZE), ">");
         }
     }
+
+    /** Link to another page. Cursors let the server seek directly to the page instead of skipping all previous
+     * items. */
+    private HtmlFragment pageLink(Model model, QueryRange range, String label) {
+        String id = (label.equals(">")) ? "id='marker' " : "";
+
+        return tag("a", id + "class='pagerLink' href="+ quote(model.criteria.withRange(range).getUrl(api)),
+                label);
+    }
 }
@@ -1,11 +1,30 @@
 package org.gamboni.cloudspill.server.query;
 
 import org.gamboni.cloudspill.domain.BackendItem;
+import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
 import org.gamboni.cloudspill.server.OrHttpError;
 
+import java.io.IOException;
+
 /**
  * @author tendays
  */
 public interface ItemQueryLoader {
     OrHttpError<ItemSet> load(Java8SearchCriteria<BackendItem> criteria);
+
+    /** Pass the items matching the given criteria to {@code consumer}, in batches, and return the other properties of
+     * the item set. Implementations should avoid holding all items in memory, and may return an ItemSet without rows.
+     * This default implementation loads all items at once.
+     * <p>
+     * If an error is returned, {@code consumer} has not been called.
+     * </p>
+     */
+    default OrHttpError<ItemSet> stream(Java8SearchCriteria<BackendItem> criteria,
+                                        CloudSpillEntityManagerDomain.BatchConsumer<BackendItem> consumer) throws IOException {
+        final OrHttpError<ItemSet> result = load(criteria);
+        if (result.hasValue()) {
+            consumer.accept(result.orThrow().rows);
+        }
+        return result;
+    }
 }
@@ -19,11 +19,22 @@ public class ItemSet {
     public final String title;
     public final String description;
 
+    /** Cursors designating the first and last rows, to load the previous or next page. Null if the set is empty or
+     * its source does not support cursors. */
+    public final String firstCursor, lastCursor;
+
     public ItemSet(long totalCount, List<? extends BackendItem> rows, String title, String description) {
+        this(totalCount, rows, title, description, null, null);
+    }
+
+    public ItemSet(long totalCount, List<? extends BackendItem> rows, String title, String description,
+                   String firstCursor, String lastCursor) {
         this.totalCount = totalCount;
         this.rows = ImmutableList.copyOf(rows);
         this.title = title;
         this.description = description;
+        this.firstCursor = firstCursor;
+        this.lastCursor = lastCursor;
     }
 
     public static ItemSet of(BackendItem item) {
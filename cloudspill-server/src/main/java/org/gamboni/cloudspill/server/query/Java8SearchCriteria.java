@@ -3,10 +3,12 @@ package org.gamboni.cloudspill.server.query;
 import com.google.common.base.CaseFormat;
 import com.google.common.collect.Streams;
 
+import org.gamboni.cloudspill.domain.BackendItem_;
 import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
 import org.gamboni.cloudspill.domain.Item_;
 import org.gamboni.cloudspill.domain.ServerDomain;
 import org.gamboni.cloudspill.domain.User;
+import org.gamboni.cloudspill.domain.Visibility;
 import org.gamboni.cloudspill.shared.api.CloudSpillApi;
 import org.gamboni.cloudspill.shared.api.ItemCredentials;
 import org.gamboni.cloudspill.shared.domain.Items;
@@ -20,6 +22,7 @@ import org.gamboni.cloudspill.shared.util.UrlStringBuilder;
 import java.time.LocalDate;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -75,6 +78,12 @@ public interface Java8SearchCriteria<T extends JpaItem> extends GalleryRequest {
         return api.getGalleryUrl(getTags(), getStringFrom(), getStringTo(), getRelativeTo(), getItemCredentials(), getRange());
     }
 
+    /** Whether {@link #getUrl(CloudSpillApi)} is a synchronisation dump, which may be requested in the
+     * {@link org.gamboni.cloudspill.shared.api.CompactCsv} format. */
+    default boolean isSynchronisation() {
+        return false;
+    }
+
     default CloudSpillEntityManagerDomain.Ordering<? super T> getOrder() {
         return CloudSpillEntityManagerDomain.Ordering.desc(JpaItem_.date);
     }
@@ -113,8 +122,7 @@ public interface Java8SearchCriteria<T extends JpaItem> extends GalleryRequest {
             // logged in users can see own items, those addressed to all users, and public ones
             itemQuery.add(root ->
                     criteriaBuilder.or(
-                            tagQuery(criteriaBuilder, "public", root),
-                            tagQuery(criteriaBuilder, "@users", root),
+                            criteriaBuilder.greaterThanOrEqualTo(visibility(root), Visibility.USERS),
                             criteriaBuilder.equal(
                                     root.get(Item_.user),
                                     ((ItemCredentials.UserCredentials)credentials).user.getName())
@@ -127,12 +135,36 @@ public interface Java8SearchCriteria<T extends JpaItem> extends GalleryRequest {
     }
 
     default <E extends T> Predicate tagQuery(CriteriaBuilder criteriaBuilder, String tag, Root<E> root) {
+        if (tag.equals("public")) {
+            // equivalent, but does not need to look at tags
+            return criteriaBuilder.equal(visibility(root), Visibility.PUBLIC);
+        }
         @SuppressWarnings("unchecked")// why isn't get(PluralAttribute) contravariant on root type?
                 Expression<Set<String>> tagPath = root.get(
                 (SetAttribute<E, String>)(SetAttribute) JpaItem_.tags);
         return criteriaBuilder.isMember(tag, tagPath);
     }
 
+    default <E extends T> Expression<Visibility> visibility(Root<E> root) {
+        // T may be any JpaItem but visibility is only defined on BackendItem, so cannot use the typed attribute
+        return root.get(BackendItem_.visibility.getName());
+    }
+
+    /** A string identifying the items matched by this criteria for the given credentials, ignoring range and
+     * relativeTo. Criteria with equal count keys must match the same items. */
+    default String getCountKey(ItemCredentials credentials) {
+        final String scope;
+        if (Items.isPublic(getEffectiveTags())) {
+            scope = "public";
+        } else if (credentials instanceof ItemCredentials.UserCredentials &&
+                !((ItemCredentials.UserCredentials)credentials).user.hasGroup(User.ADMIN_GROUP)) {
+            scope = "user:"+ ((ItemCredentials.UserCredentials)credentials).user.getName();
+        } else {
+            scope = credentials.getAuthStatus().name();
+        }
+        return new TreeSet<>(getEffectiveTags()) +"|"+ getFrom() +"|"+ getTo() +"|"+ scope;
+    }
+
     default ItemCredentials getCredentialForPattern(String itemKey) {
         return new ItemCredentials.PublicAccess();
     }
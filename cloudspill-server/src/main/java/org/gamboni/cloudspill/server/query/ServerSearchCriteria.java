@@ -6,8 +6,10 @@ import org.gamboni.cloudspill.domain.BackendItem;
 import org.gamboni.cloudspill.domain.BackendItem_;
 import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
 import org.gamboni.cloudspill.domain.ServerDomain;
+import org.gamboni.cloudspill.shared.api.CloudSpillApi;
 import org.gamboni.cloudspill.shared.api.ItemCredentials;
 import org.gamboni.cloudspill.shared.query.QueryRange;
+import org.gamboni.cloudspill.shared.util.UrlStringBuilder;
 
 import java.time.Instant;
 import java.time.LocalDate;
@@ -91,7 +93,7 @@ public class ServerSearchCriteria implements Java8SearchCriteria<BackendItem> {
     }
 
     @Override
-    public Java8SearchCriteria<BackendItem> withRange(QueryRange newRange) {
+    public ServerSearchCriteria withRange(QueryRange newRange) {
         return new ServerSearchCriteria(from, to, user, tags, minId, minModDate, relativeTo, itemCredentials, newRange);
     }
 
@@ -113,6 +115,22 @@ public class ServerSearchCriteria implements Java8SearchCriteria<BackendItem> {
         return new ServerSearchCriteria(from, to, user, tags, minId, minModDate, relativeTo, itemCredentials, range);
     }
 
+    @Override
+    public UrlStringBuilder getUrl(CloudSpillApi api) {
+        if (minModDate != null) {
+            return api.withRange(api.getItemsSinceUrl(minModDate.toEpochMilli()), range);
+        } else if (minId != null) {
+            return api.withRange(api.getItemsAfterIdUrl(minId), range);
+        } else {
+            return Java8SearchCriteria.super.getUrl(api);
+        }
+    }
+
+    @Override
+    public boolean isSynchronisation() {
+        return minModDate != null || minId != null;
+    }
+
     @Override
     public CloudSpillEntityManagerDomain.Ordering<? super BackendItem> getOrder() {
         if (minModDate != null) {
@@ -122,6 +140,11 @@ public class ServerSearchCriteria implements Java8SearchCriteria<BackendItem> {
         }
     }
 
+    @Override
+    public String getCountKey(ItemCredentials credentials) {
+        return Java8SearchCriteria.super.getCountKey(credentials) +"|"+ minId +"|"+ minModDate;
+    }
+
     @Override
     public <E extends BackendItem, Q extends ServerDomain.Query<E>> Q applyTo(Q itemQuery, ItemCredentials credentials) {
         Java8SearchCriteria.super.applyTo(itemQuery, credentials);
@@ -0,0 +1,161 @@
+package org.gamboni.cloudspill.server;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.gamboni.cloudspill.domain.CloudSpillEntityManagerDomain;
+import org.gamboni.cloudspill.domain.Item;
+import org.gamboni.cloudspill.domain.Item_;
+import org.gamboni.cloudspill.domain.ServerDomain;
+import org.gamboni.cloudspill.shared.domain.ItemType;
+import org.gamboni.cloudspill.shared.query.QueryRange;
+import org.h2.jdbcx.JdbcDataSource;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import static org.junit.Assert.*;
+
+/** Number of SQL statements needed to show items, on an in-memory database with the fetching and caching settings
+ * of the server.
+ *
+ * @author tendays
+ */
+public class ItemListStatementsTest {
+
+    private static final int ITEM_COUNT = 120;
+
+    private static EntityManagerFactory emf;
+    private static SessionFactory sessionFactory;
+    private static Statistics statistics;
+
+    @BeforeClass
+    public static void createDatabase() {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:cloudspill;DB_CLOSE_DELAY=-1");
+
+        final Properties prop = new Properties();
+        prop.setProperty(AvailableSettings.DIALECT, H2Dialect.class.getName());
+        prop.setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop");
+
+        emf = new ServerModule("unused").entityManagerFactoryBuilder(dataSource, prop).build();
+        sessionFactory = emf.unwrap(SessionFactory.class);
+        statistics = sessionFactory.getStatistics();
+
+        final EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            final Item item = new Item();
+            item.setUser("user");
+            item.setFolder("folder");
+            item.setPath("item" + i + ".jpg");
+            item.setDate(LocalDateTime.of(2020, 1, 1, 0, 0).plusHours(i));
+            item.setType(ItemType.IMAGE);
+            item.setTags(ImmutableSet.of("colour" + (i % 3), "place" + (i % 5)));
+            em.persist(item);
+        }
+        em.getTransaction().commit();
+        em.close();
+    }
+
+    @AfterClass
+    public static void dropDatabase() {
+        emf.close();
+    }
+
+    @Test
+    public void pageTakesTwoStatements() {
+        assertEquals(2, statementsToShow(ServerDomain::selectItemList, QueryRange.limit(20)));
+    }
+
+    @Test
+    public void statementsDoNotDependOnPageSize() {
+        assertEquals(2, statementsToShow(ServerDomain::selectItemList, QueryRange.limit(5)));
+        assertEquals(2, statementsToShow(ServerDomain::selectItemList, QueryRange.limit(100)));
+        assertEquals(2, statementsToShow(ServerDomain::selectItemList, new QueryRange(60, 50)));
+    }
+
+    /** Without fetching, tags are loaded on first access, one batch of items at a time. */
+    @Test
+    public void lazyTagsTakeMoreStatements() {
+        final long statements = statementsToShow(ServerDomain::selectItem, QueryRange.limit(100));
+        assertTrue(statements + " statements", statements > 2);
+    }
+
+    /** Items and their tags are kept in the second-level cache, so looking them up again (for instance to show one of
+     * them after a gallery) needs no round-trip to the database. */
+    @Test
+    public void cachedItemsTakeNoStatements() {
+        sessionFactory.getCache().evictAllRegions();
+        final List<Long> ids = new ArrayList<>();
+        final EntityManager em = emf.createEntityManager();
+        try {
+            for (Item item : new ServerDomain(em).selectItemList()
+                    .addOrder(CloudSpillEntityManagerDomain.Ordering.asc(Item_.id))
+                    .range(QueryRange.limit(20))
+                    .list()) {
+                ids.add(item.getId());
+            }
+        } finally {
+            em.close();
+        }
+
+        final long hits = statistics.getSecondLevelCacheHitCount();
+        assertEquals(0, statementsToFind(ids));
+        // One hit for each item and one for its tags
+        assertEquals(2 * ids.size(), statistics.getSecondLevelCacheHitCount() - hits);
+
+        sessionFactory.getCache().evictAllRegions();
+        final long uncached = statementsToFind(ids);
+        assertTrue(uncached + " statements", uncached >= ids.size());
+    }
+
+    /** Look up the given items one by one, reading their tags, and return the number of statements it took. */
+    private static long statementsToFind(List<Long> ids) {
+        final long before = statistics.getPrepareStatementCount();
+        final EntityManager em = emf.createEntityManager();
+        try {
+            for (long id : ids) {
+                assertEquals(2, em.find(Item.class, id).getTags().size());
+            }
+        } finally {
+            em.close();
+        }
+        return statistics.getPrepareStatementCount() - before;
+    }
+
+    /** Load the given page of the given query as galleries do, reading the tags of each item, and return the number
+     * of statements it took. */
+    private static long statementsToShow(Function<ServerDomain, CloudSpillEntityManagerDomain.Query<Item>> query,
+                                         QueryRange range) {
+        // Unlike EntityManagerFactory.getCache(), this also evicts collections
+        sessionFactory.getCache().evictAllRegions();
+        final long before = statistics.getPrepareStatementCount();
+        final EntityManager em = emf.createEntityManager();
+        try {
+            final List<Item> page = query.apply(new ServerDomain(em))
+                    .addOrder(CloudSpillEntityManagerDomain.Ordering.asc(Item_.id))
+                    .range(range)
+                    .list();
+            assertEquals(Math.min(range.limit, ITEM_COUNT - range.offset), page.size());
+            for (Item item : page) {
+                assertEquals(2, item.getTags().size());
+            }
+        } finally {
+            em.close();
+        }
+        return statistics.getPrepareStatementCount() - before;
+    }
+}
@@ -115,6 +115,9 @@ public class CloudSpillApi<T> {
     public static final String UPLOAD_TIMESTAMP_HEADER = "X-CloudSpill-Timestamp";
     /** "Upload file" function: file type (ItemType) HTTP header */
     public static final String UPLOAD_TYPE_HEADER = "X-CloudSpill-Type";
+    /** "Upload file" function: optional MD5 checksum (base64) HTTP header. If the server already has a file with that
+     * checksum it does not need to store the data again. */
+    public static final String UPLOAD_CHECKSUM_HEADER = "X-CloudSpill-Checksum";
 
     /** PUT URL to upload a file */
     public String upload(String user, String folder, String path) {
@@ -125,6 +128,50 @@ public class CloudSpillApi<T> {
         matcher.match(ApiElementMatcher.HttpMethod.PUT, upload(user, folder, path), consumer);
     }
 
+    /** "Chunked upload" function: MD5 checksum (base64) HTTP header of an uploaded chunk */
+    public static final String UPLOAD_CHUNK_CHECKSUM_HEADER = "X-CloudSpill-Chunk-Checksum";
+    /** "Chunked upload" function: total number of chunks HTTP header, when committing */
+    public static final String UPLOAD_CHUNK_COUNT_HEADER = "X-CloudSpill-Chunk-Count";
+
+    /** POST URL to start a chunked upload, as an alternative to {@link #upload(String, String, String)} for large
+     * files. Takes the same headers as upload, and returns the id of the upload session. */
+    public String uploadSession(String user, String folder, String path) {
+        return serverUrl +"upload/"+ encodePathPart(user) +"/"+ encodePathPart(folder) +"/"+ encodePathPart(path);
+    }
+
+    public void uploadSession(String user, String folder, String path, T consumer) {
+        matcher.match(ApiElementMatcher.HttpMethod.POST, uploadSession(user, folder, path), consumer);
+    }
+
+    /** GET URL returning the numbers of the chunks received so far in the given upload session, one per line. */
+    public String uploadSessionStatus(Object session) {
+        return serverUrl +"upload-session/"+ session;
+    }
+
+    public void uploadSessionStatus(Object session, T consumer) {
+        matcher.match(ApiElementMatcher.HttpMethod.GET, uploadSessionStatus(session), consumer);
+    }
+
+    /** PUT URL to upload a chunk. Chunks are numbered from zero and may have any size. The body must match the
+     * {@link #UPLOAD_CHUNK_CHECKSUM_HEADER} header. Sending the same chunk again replaces it. */
+    public String uploadChunk(Object session, Object number) {
+        return serverUrl +"upload-session/"+ session +"/chunks/"+ number;
+    }
+
+    public void uploadChunk(Object session, Object number, T consumer) {
+        matcher.match(ApiElementMatcher.HttpMethod.PUT, uploadChunk(session, number), consumer);
+    }
+
+    /** POST URL to create the item from the concatenation of all chunks, whose count is given in the
+     * {@link #UPLOAD_CHUNK_COUNT_HEADER} header. Returns the item id, like {@link #upload(String, String, String)}. */
+    public String commitUpload(Object session) {
+        return serverUrl +"upload-session/"+ session +"/commit";
+    }
+
+    public void commitUpload(Object session, T consumer) {
+        matcher.match(ApiElementMatcher.HttpMethod.POST, commitUpload(session), consumer);
+    }
+
     private static String encodePathPart(String text) {
         /* See: https://www.talisman.org/~erlkonig/misc/lunatech%5Ewhat-every-webdev-must-know-about-url-encoding/ */
         // We however do NOT encode slashes. For instance upload("user", "folder", "path1/path2") will correctly do /user/folder/path2/path2
@@ -143,6 +190,16 @@ public class CloudSpillApi<T> {
         return serverUrl +"sinceDate/"+ millis;
     }
 
+    /** GET URL returning the items whose id is larger than the given one. */
+    public String getItemsAfterIdUrl(Object id) {
+        return serverUrl +"item/since/"+ id;
+    }
+
+    /** Append the paging parameters of the given range to an item list URL like {@link #getItemsSinceUrl(Object)}. */
+    public UrlStringBuilder withRange(String url, QueryRange range) {
+        return sliceParameters(new UrlStringBuilder(url), null, null, range);
+    }
+
     public String getTagUrl(Object itemId) {
         return serverUrl +"item/"+ itemId +"/tags";
     }
@@ -391,6 +448,12 @@ public class CloudSpillApi<T> {
         if (range.limit != null) {
             builder.appendQueryParam("limit", range.limit);
         }
+        if (range.after != null) {
+            builder.appendQueryParam("after", range.after);
+        }
+        if (range.before != null) {
+            builder.appendQueryParam("before", range.before);
+        }
         return builder;
     }
 }
@@ -0,0 +1,359 @@
+package org.gamboni.cloudspill.shared.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Binary alternative to the csv format, for synchronising large item lists. Rows are described by the same
+ * {@link Csv} objects, and hold the same values.
+ * <p>
+ * A stream starts with the {@link #MAGIC} bytes and a flag byte. If {@link #FLAG_GZIP} is set, the rest of the
+ * stream is gzip-compressed. Then come the column names, and the rows, each prefixed with its length in bytes. A zero
+ * length marks the end of rows, and is followed by metadata (total count, cursors...) as key/value pairs.
+ * </p><p>
+ * Each value is a tag byte, optionally followed by data:
+ * </p><ul>
+ * <li>{@link #NULL}: no data.</li>
+ * <li>{@link #NUMBER}: the value is an integer, stored as the difference with the previous number of the same column,
+ * as a zigzag varint, which takes one byte per seven bits of that difference. Rows are sorted by date or by
+ * modification time, so that column changes little between rows, and ids and other timestamps are usually close
+ * too, as items tend to be uploaded together. They typically take a few bytes rather than up to 13 characters.</li>
+ * <li>{@link #REFERENCE}: a varint index into the dictionary of strings seen so far in this stream.</li>
+ * <li>{@link #STRING}: a varint byte count followed by UTF-8 data. Short strings are added to the dictionary, so
+ * that user names, folders, types and tag lists are only sent once per stream.</li>
+ * </ul>
+ *
+ * @author tendays
+ */
+public abstract class CompactCsv {
+    /** Mime type used to request and return this format. */
+    public static final String MIME = "application/x-cloudspill-items";
+    /** Accept header value for requesting this format with gzip compression. */
+    public static final String MIME_GZIP = MIME + "; framing=gzip";
+
+    private static final byte[] MAGIC = {'C', 'S', 'B', 1};
+    private static final int FLAG_GZIP = 1;
+
+    private static final int NULL = 0;
+    private static final int NUMBER = 1;
+    private static final int REFERENCE = 2;
+    private static final int STRING = 3;
+
+    /** Longer strings are unlikely to be repeated and are not added to the dictionary. */
+    private static final int MAX_DICTIONARY_STRING = 100;
+    /** Bound memory used by the dictionary on both sides. */
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Whether the given Accept header value requests this format. */
+    public static boolean isRequested(String acceptHeader) {
+        return acceptHeader != null && acceptHeader.startsWith(MIME);
+    }
+
+    /** Whether the given Accept header value requests this format with gzip compression. */
+    public static boolean isGzipRequested(String acceptHeader) {
+        return isRequested(acceptHeader) && acceptHeader.contains("gzip");
+    }
+
+    public static class Encoder<I> {
+        private final Csv<I> csv;
+        private final OutputStream out;
+        private final GZIPOutputStream gzip;
+        private final int columnCount;
+        private final long[] previousNumbers;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private final ByteArrayOutputStream row = new ByteArrayOutputStream();
+
+        /** Prepare writing rows into the given stream. The header is written immediately. Nothing is closed or
+         * flushed by this object except in {@link #flush()} and {@link #finish}. */
+        public Encoder(Csv<I> csv, OutputStream out, boolean compress) throws IOException {
+            this.csv = csv;
+            out.write(MAGIC);
+            out.write(compress ? FLAG_GZIP : 0);
+            if (compress) {
+                this.gzip = new GZIPOutputStream(out, true);
+                this.out = gzip;
+            } else {
+                this.gzip = null;
+                this.out = out;
+            }
+            final String[] header = csv.header().split(";");
+            this.columnCount = header.length;
+            this.previousNumbers = new long[columnCount];
+            writeVarint(this.out, columnCount);
+            for (String column : header) {
+                writeString(this.out, column);
+            }
+        }
+
+        public void write(I item) throws IOException {
+            row.reset();
+            final int[] column = {0};
+            csv.toMap(item, new Csv.Consumer() {
+                @Override
+                public void put(String key, String value) {
+                    try {
+                        writeValue(column[0]++, value);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e); // ByteArrayOutputStream does not throw
+                    }
+                }
+            });
+            writeVarint(out, row.size());
+            row.writeTo(out);
+        }
+
+        private void writeValue(int column, String value) throws IOException {
+            if (value == null) {
+                row.write(NULL);
+                return;
+            }
+            final Long number = parseNumber(value);
+            if (number != null && column < columnCount) {
+                row.write(NUMBER);
+                writeVarint(row, zigzag(number - previousNumbers[column]));
+                previousNumbers[column] = number;
+                return;
+            }
+            final Integer reference = dictionary.get(value);
+            if (reference != null) {
+                row.write(REFERENCE);
+                writeVarint(row, reference);
+                return;
+            }
+            row.write(STRING);
+            writeString(row, value);
+            if (isDictionaryCandidate(value, dictionary.size())) {
+                dictionary.put(value, dictionary.size());
+            }
+        }
+
+        /** Send rows written so far, including through gzip compression. */
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /** Terminate rows and write the given metadata. The underlying stream is flushed but not closed. */
+        public void finish(Map<String, String> metadata) throws IOException {
+            writeVarint(out, 0);
+            writeVarint(out, metadata.size());
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            if (gzip != null) {
+                gzip.finish();
+            }
+            out.flush();
+        }
+    }
+
+    public static class Decoder<I> {
+        private final DataInputStream in;
+        private final List<String> header;
+        private final Csv.ValueExtractor<I> extractor;
+        private final long[] previousNumbers;
+        private final List<String> dictionary = new ArrayList<>();
+        private byte[] row = new byte[256];
+        private int rowLength = -1;
+        private Map<String, String> metadata = null;
+
+        /** Read the header from the given stream. The stream is not closed by this object. */
+        public Decoder(Csv<I> csv, InputStream in) throws IOException {
+            final DataInputStream data = new DataInputStream(in);
+            final byte[] magic = new byte[MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a compact csv stream");
+            }
+            this.in = ((data.readUnsignedByte() & FLAG_GZIP) != 0) ?
+                    new DataInputStream(new GZIPInputStream(in)) : data;
+            final int columnCount = readVarint(this.in);
+            this.header = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                header.add(readString(this.in));
+            }
+            this.extractor = csv.extractor(header);
+            this.previousNumbers = new long[columnCount];
+        }
+
+        public List<String> getHeader() {
+            return header;
+        }
+
+        /** Whether another row is available. Returns false once all rows have been read. */
+        public boolean hasNext() throws IOException {
+            if (rowLength == -1 && metadata == null) {
+                rowLength = readVarint(in);
+                if (rowLength == 0) {
+                    readMetadata();
+                } else if (rowLength > row.length) {
+                    row = new byte[Math.max(rowLength, row.length * 2)];
+                }
+            }
+            return metadata == null;
+        }
+
+        /** Read the next row into the given item. */
+        public <J extends I> J read(J item) throws IOException {
+            if (!hasNext()) {
+                throw new EOFException("No more rows");
+            }
+            in.readFully(row, 0, rowLength);
+            final int[] position = {0};
+            final List<String> values = new ArrayList<>(header.size());
+            while (position[0] < rowLength) {
+                values.add(readValue(values.size(), position));
+            }
+            rowLength = -1;
+            return extractor.deserialise(item, values);
+        }
+
+        private String readValue(int column, int[] position) throws IOException {
+            final int tag = row[position[0]++];
+            switch (tag) {
+                case NULL:
+                    return null;
+                case NUMBER:
+                    if (column >= previousNumbers.length) {
+                        throw new IOException("Unexpected number in column " + column);
+                    }
+                    final long number = previousNumbers[column] + unzigzag(readVarint(row, rowLength, position));
+                    previousNumbers[column] = number;
+                    return Long.toString(number);
+                case REFERENCE:
+                    final int reference = (int) readVarint(row, rowLength, position);
+                    if (reference >= dictionary.size()) {
+                        throw new IOException("Invalid dictionary reference " + reference);
+                    }
+                    return dictionary.get(reference);
+                case STRING:
+                    final int length = (int) readVarint(row, rowLength, position);
+                    if (length < 0 || position[0] + length > rowLength) {
+                        throw new EOFException("Truncated row");
+                    }
+                    final String value = new String(row, position[0], length, UTF_8);
+                    position[0] += length;
+                    if (isDictionaryCandidate(value, dictionary.size())) {
+                        dictionary.add(value);
+                    }
+                    return value;
+                default:
+                    throw new IOException("Invalid value tag " + tag);
+            }
+        }
+
+        /** Metadata sent after the rows. May only be called once {@link #hasNext()} returned false. */
+        public Map<String, String> getMetadata() throws IOException {
+            if (hasNext()) {
+                throw new IllegalStateException("Rows must be read before metadata");
+            }
+            return metadata;
+        }
+
+        private void readMetadata() throws IOException {
+            final int size = readVarint(in);
+            metadata = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                final String key = readString(in);
+                metadata.put(key, readString(in));
+            }
+        }
+    }
+
+    /** Return the given string as a number if it is the canonical representation of a long, otherwise null. */
+    private static Long parseNumber(String value) {
+        final int length = value.length();
+        if (length == 0 || length > 18) {
+            return null; // longer values could overflow, and are not worth the trouble
+        }
+        int start = (value.charAt(0) == '-') ? 1 : 0;
+        if (start == length || (value.charAt(start) == '0' && length > start + 1) || (start == 1 && value.equals("-0"))) {
+            return null; // "-", leading zeros and "-0" would not survive a round trip
+        }
+        long result = 0;
+        for (int i = start; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return (start == 1) ? -result : result;
+    }
+
+    private static boolean isDictionaryCandidate(String value, int dictionarySize) {
+        return value.length() <= MAX_DICTIONARY_STRING && dictionarySize < MAX_DICTIONARY_SIZE;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        if (result > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length " + result);
+        }
+        return (int) result;
+    }
+
+    private static long readVarint(byte[] buffer, int limit, int[] position) throws IOException {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position[0] >= limit) {
+                throw new EOFException("Truncated row");
+            }
+            b = buffer[position[0]++] & 0xFF;
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        return result;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
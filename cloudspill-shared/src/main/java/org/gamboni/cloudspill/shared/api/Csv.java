@@ -22,11 +22,19 @@ public interface Csv<I> {
 
     Extractor<I> extractor(String header);
 
+    /** Like {@link #extractor(String)}, for data which is already split into columns, like {@link CompactCsv}. */
+    ValueExtractor<I> extractor(List<String> header);
+
     public interface Extractor<I> {
         /** Read values from the given csv file line, and write them into the given item. */
         <J extends I> J deserialise(J item, String csv);
     }
 
+    public interface ValueExtractor<I> {
+        /** Write the given values, in header order, into the given item. Null values are passed to setters as is. */
+        <J extends I> J deserialise(J item, List<String> values);
+    }
+
     public interface EmbedGetter<I, C> {
         C get(I item);
     }
@@ -158,6 +166,31 @@ public interface Csv<I> {
             };
         }
 
+        @Override
+        public ValueExtractor<I> extractor(List<String> header) {
+            List<Setter<I>> extractorSetters = new ArrayList<>();
+            for (String name : header) {
+                extractorSetters.add(findSetter(name));
+            }
+            List<ValueExtractor<I>> embeddedExtractors = new ArrayList<>();
+            for (CsvEmbed<?> embed : embeds) {
+                embeddedExtractors.add(embed.extractor(header));
+            }
+
+            return new ValueExtractor<I>() {
+                @Override
+                public <J extends I> J deserialise(J item, List<String> values) {
+                    for (int i = 0; i < extractorSetters.size() && i < values.size(); i++) {
+                        extractorSetters.get(i).set(item, values.get(i));
+                    }
+                    for (ValueExtractor<I> embeddedExtractor : embeddedExtractors) {
+                        embeddedExtractor.deserialise(item, values);
+                    }
+                    return item;
+                }
+            };
+        }
+
         private class CsvColumn {
             final String name;
             final Getter<I> getter;
@@ -198,6 +231,17 @@ public interface Csv<I> {
                     }
                 };
             }
+
+            ValueExtractor<I> extractor(List<String> header) {
+                final ValueExtractor<C> childExtractor = child.extractor(header);
+                return new ValueExtractor<I>() {
+                    @Override
+                    public <J extends I> J deserialise(J item, List<String> values) {
+                        childExtractor.deserialise(getter.get(item), values);
+                        return item;
+                    }
+                };
+            }
         }
 
         public Impl<I> add(String name, Getter<I> getter, Setter<I> setter) {
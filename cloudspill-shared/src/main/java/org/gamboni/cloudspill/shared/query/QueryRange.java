@@ -17,25 +17,52 @@ public class QueryRange {
         return new QueryRange(offset, null);
     }
 
+    /** Make a QueryRange starting right after the row identified by the given cursor. */
+    public static QueryRange after(String cursor, Integer limit) {
+        return new QueryRange(0, limit, cursor, null);
+    }
+
+    /** Make a QueryRange ending right before the row identified by the given cursor. */
+    public static QueryRange before(String cursor, Integer limit) {
+        return new QueryRange(0, limit, null, cursor);
+    }
+
     public final int offset;
     public final Integer limit;
+    /** If not null, only return rows following the one identified by this cursor. The offset is then counted from
+     * that row rather than from the start of the result set. Cursors are opaque strings produced by the server. */
+    public final String after;
+    /** If not null, only return the rows immediately preceding the one identified by this cursor. */
+    public final String before;
 
     public QueryRange(int offset, Integer limit) {
+        this(offset, limit, null, null);
+    }
+
+    public QueryRange(int offset, Integer limit, String after, String before) {
         this.offset = offset;
         this.limit = limit;
+        this.after = after;
+        this.before = before;
+    }
+
+    /** Whether this range is anchored to a cursor rather than to the start of the result set. */
+    public boolean hasCursor() {
+        return after != null || before != null;
     }
 
     public QueryRange shift(int amount) {
-        return new QueryRange(offset + amount, limit);
+        return new QueryRange(offset + amount, limit, after, before);
     }
 
     public QueryRange truncate() {
         return (offset >= 0) ? this :
         new QueryRange(0,
-                (limit == null) ? null : limit + offset);
+                (limit == null) ? null : limit + offset,
+                after, before);
     }
 
     public QueryRange withLimit(int newLimit) {
-        return new QueryRange(this.offset, newLimit);
+        return new QueryRange(this.offset, newLimit, after, before);
     }
 }
@@ -0,0 +1,82 @@
+package org.gamboni.cloudspill.shared.util;
+
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.imaging.jpeg.JpegSegmentData;
+import com.drew.imaging.jpeg.JpegSegmentReader;
+import com.drew.imaging.jpeg.JpegSegmentType;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.MetadataException;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.exif.ExifThumbnailDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/** Small JPEG preview embedded by most cameras into the EXIF data of their pictures, typically 160 pixels wide.
+ *
+ * @author tendays
+ */
+public class ExifThumbnail {
+    /** The embedded thumbnail, as a JPEG file. */
+    public final byte[] jpeg;
+    /** EXIF orientation of the main image, which applies to the thumbnail as well. */
+    public final int orientation;
+
+    private ExifThumbnail(byte[] jpeg, int orientation) {
+        this.jpeg = jpeg;
+        this.orientation = orientation;
+    }
+
+    /** Read the thumbnail embedded in the given JPEG file. Only the file header is read, not the main image.
+     *
+     * @return the thumbnail, or null if the file has none (or is not a JPEG file).
+     */
+    public static ExifThumbnail read(File file) {
+        try {
+            final JpegSegmentData segments = JpegSegmentReader.readSegments(file,
+                    Collections.singleton(JpegSegmentType.APP1));
+            final Iterable<byte[]> app1 = segments.getSegments(JpegSegmentType.APP1);
+            final Metadata metadata = new Metadata();
+            new ExifReader().readJpegSegments(app1, metadata, JpegSegmentType.APP1);
+
+            final ExifThumbnailDirectory directory = metadata.getFirstDirectoryOfType(ExifThumbnailDirectory.class);
+            if (directory == null ||
+                    !directory.containsTag(ExifThumbnailDirectory.TAG_THUMBNAIL_OFFSET) ||
+                    !directory.containsTag(ExifThumbnailDirectory.TAG_THUMBNAIL_LENGTH)) {
+                return null;
+            }
+            /* Thumbnail offset is relative to the TIFF header, which follows the "Exif\0\0" preamble */
+            final int start = ExifReader.JPEG_SEGMENT_PREAMBLE.length() +
+                    directory.getInt(ExifThumbnailDirectory.TAG_THUMBNAIL_OFFSET);
+            final int length = directory.getInt(ExifThumbnailDirectory.TAG_THUMBNAIL_LENGTH);
+            for (byte[] segment : app1) {
+                if (isExif(segment) && start + length <= segment.length) {
+                    final ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+                    final Integer orientation = (ifd0 == null) ? null : ifd0.getInteger(ExifIFD0Directory.TAG_ORIENTATION);
+                    return new ExifThumbnail(Arrays.copyOfRange(segment, start, start + length),
+                            (orientation == null) ? 1 : orientation);
+                }
+            }
+            return null;
+        } catch (JpegProcessingException | IOException | MetadataException e) {
+            Log.debug("No EXIF thumbnail in "+ file +": "+ e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isExif(byte[] segment) {
+        final String preamble = ExifReader.JPEG_SEGMENT_PREAMBLE;
+        if (segment.length < preamble.length()) {
+            return false;
+        }
+        for (int i = 0; i < preamble.length(); i++) {
+            if (segment[i] != preamble.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package org.gamboni.cloudspill.shared.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author tendays
+ */
+public class CompactCsvTest {
+
+    private static class Row {
+        String id, name, value;
+
+        Row() {}
+
+        Row(String id, String name, String value) {
+            this.id = id;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return id +";"+ name +";"+ value;
+        }
+    }
+
+    private static final Csv<Row> CSV = new Csv.Impl<Row>()
+            .add("id", r -> r.id, (r, v) -> r.id = v)
+            .add("name", r -> r.name, (r, v) -> r.name = v)
+            .add("value", r -> r.value, (r, v) -> r.value = v);
+
+    private static final Map<String, String> METADATA = new LinkedHashMap<>();
+    static {
+        METADATA.put("Total", "12");
+        METADATA.put("Next", "WzEyXQ");
+    }
+
+    @Test
+    public void nullsRoundTrip() throws IOException {
+        assertRoundTrip(false,
+                new Row(null, null, null),
+                new Row("1", null, ""),
+                new Row(null, "", null));
+    }
+
+    @Test
+    public void numbersRoundTrip() throws IOException {
+        assertRoundTrip(false,
+                new Row("1000", "0", "-5"),
+                new Row("998", "-1", "5"),
+                new Row("-999999999999999999", "999999999999999999", "0"),
+                new Row("1000", "-100000000000000000", "1"));
+    }
+
+    @Test
+    public void nonCanonicalNumbersKeepTheirSpelling() throws IOException {
+        assertRoundTrip(false,
+                new Row("007", "-0", "-"),
+                new Row("+5", "1e3", " 12"),
+                new Row("12345678901234567890", "-9223372036854775808", "1.5"));
+    }
+
+    @Test
+    public void dictionaryReferencesRoundTrip() throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            rows.add(new Row(Integer.toString(i), "user" + (i % 3), "folder/ü" + (i % 7)));
+        }
+        assertRoundTrip(false, rows.toArray(new Row[0]));
+    }
+
+    @Test
+    public void repeatedStringsAreSentOnce() throws IOException {
+        final byte[] repeated = encode(false,
+                new Row("1", "some folder name", null),
+                new Row("2", "some folder name", null));
+        final byte[] distinct = encode(false,
+                new Row("1", "some folder name", null),
+                new Row("2", "other folder name", null));
+        assertTrue(repeated.length + "/" + distinct.length, repeated.length < distinct.length - 10);
+    }
+
+    @Test
+    public void longStringsAreNotReferenced() throws IOException {
+        final char[] chars = new char[500];
+        Arrays.fill(chars, 'x');
+        final String longString = new String(chars);
+        assertRoundTrip(false,
+                new Row("1", longString, longString),
+                new Row("2", longString, "short"));
+    }
+
+    @Test
+    public void gzipFramingRoundTrip() throws IOException {
+        final Row[] rows = new Row[200];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Row(Integer.toString(1000 + i), "tag" + (i % 5), (i % 10 == 0) ? null : "value " + i);
+        }
+        assertRoundTrip(true, rows);
+
+        /* Everything after the magic and flag bytes is a gzip stream */
+        final byte[] encoded = encode(true, rows);
+        assertEquals('C', encoded[0]);
+        assertEquals(1, encoded[4]);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(encoded, 5, encoded.length - 5))) {
+            while (gzip.read() != -1) {
+                // check the whole stream is valid
+            }
+        }
+        assertTrue(encoded.length < encode(false, rows).length);
+    }
+
+    @Test
+    public void emptyStream() throws IOException {
+        assertRoundTrip(false);
+        assertRoundTrip(true);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFormats() throws IOException {
+        new CompactCsv.Decoder<>(CSV, new ByteArrayInputStream("id;name;value\n".getBytes("UTF-8")));
+    }
+
+    private static byte[] encode(boolean compress, Row... rows) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CompactCsv.Encoder<Row> encoder = new CompactCsv.Encoder<>(CSV, out, compress);
+        for (Row row : rows) {
+            encoder.write(row);
+        }
+        encoder.finish(METADATA);
+        return out.toByteArray();
+    }
+
+    private static void assertRoundTrip(boolean compress, Row... rows) throws IOException {
+        final CompactCsv.Decoder<Row> decoder = new CompactCsv.Decoder<>(CSV,
+                new ByteArrayInputStream(encode(compress, rows)));
+        assertEquals(Arrays.asList("id", "name", "value"), decoder.getHeader());
+        final List<String> decoded = new ArrayList<>();
+        while (decoder.hasNext()) {
+            decoded.add(decoder.read(new Row()).toString());
+        }
+        final List<String> expected = new ArrayList<>();
+        for (Row row : rows) {
+            expected.add(row.toString());
+        }
+        assertEquals(expected, decoded);
+        assertEquals(METADATA, decoder.getMetadata());
+    }
+}